@@ -1,6 +1,9 @@
+import java.io.File;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Scanner;
 
 /********************Starter Code
@@ -22,29 +25,14 @@ public class A3main {
         VariableElimination ve;
         String value;
         boolean evidenceFlag;
-        boolean greedy = false;
+        String heuristic = "";
         String detailsFlag = "";
-        // assign details and greedy flag.
-        if (args.length == 3) {
-            if (args[2].equalsIgnoreCase("details")) {
-                detailsFlag = args[2];
-            } else if (args[2].equalsIgnoreCase("greedy")) {
-                greedy = true;
-            }
-        }
-
-        // if both are given.
-        if (args.length >= 4) {
-            if (args[2].equalsIgnoreCase("details")) {
-                detailsFlag = args[2];
-            } else if (args[2].equalsIgnoreCase("greedy")) {
-                greedy = true;
-            }
-
-            if (args[3].equalsIgnoreCase("details")) {
-                detailsFlag = args[3];
-            } else if (args[3].equalsIgnoreCase("greedy")) {
-                greedy = true;
+        // assign details flag and ordering heuristic (greedy, mindegree, minfill, weightedminfill, mcs or optimal).
+        for (int i = 2; i < Math.min(args.length, 4); i++) {
+            if (args[i].equalsIgnoreCase("details")) {
+                detailsFlag = args[i];
+            } else {
+                heuristic = args[i].toLowerCase();
             }
         }
 
@@ -96,17 +84,29 @@ public class A3main {
                 String[] query = getQueriedNode(sc);
                 String variable = query[0];
                 value = query[1];
+                ArrayList<String[]> evidence = getEvidence(sc);
+                evidenceFlag = true;
                 String[] order;
-                Ordering ordering = new Ordering(bn.getNodes(), bn.getEdges());
-                // decide on ordering strategy.
-                if (greedy) {
-                    order = ordering.greedyMinEdgesSearch(variable);
-                } else {
+                Ordering ordering = new Ordering(bn);
+                // decide on ordering strategy: a named heuristic, or the cheapest order the optimiser finds.
+                if (heuristic.equals("greedy") || heuristic.equals("mindegree")) {
+                    order = ordering.minDegreeSearch(variable);
+                } else if (heuristic.equals("minfill")) {
+                    order = ordering.minFillSearch(variable);
+                } else if (heuristic.equals("weightedminfill")) {
+                    order = ordering.weightedMinFillSearch(variable);
+                } else if (heuristic.equals("mcs")) {
                     order = ordering.maximumCardinalitySearch(variable);
+                } else if (heuristic.equals("optimal")) {
+                    order = getOptimalOrder(bn, args[1], variable);
+                } else {
+                    OrderingOptimiser optimiser = new OrderingOptimiser(bn, variable, evidence);
+                    order = optimiser.optimise();
+                    if (detailsFlag.equalsIgnoreCase("details")) {
+                        System.out.println("Predicted cost: " + optimiser.getCost() + " (best of "
+                                + optimiser.getCandidatesEvaluated() + " candidate orders)");
+                    }
                 }
-                System.out.println(Arrays.toString(order));
-                ArrayList<String[]> evidence = getEvidence(sc);
-                evidenceFlag = true;
                 ve = new VariableElimination(bn, variable, order, evidence);
                 // execute query of p(variable=value|evidence) with given order of elimination
                 //print the order
@@ -130,6 +130,39 @@ public class A3main {
                 printResult(result);
             }
             break;
+
+            case "P6": {
+                //construct the network in args[1]
+                BayesianNetwork bn = getNetwork(args[1]);
+                String[] query = getQueriedNode(sc);
+                String variable = query[0];
+                value = query[1];
+                ArrayList<String[]> evidence = getEvidence(sc);
+                // calibrate a junction tree once, then read p(variable=value|evidence) from it.
+                JunctionTree jt = new JunctionTree(bn);
+                jt.setEvidence(evidence);
+                jt.calibrate();
+                double result = jt.getProbability(variable, value);
+                printResult(result);
+            }
+            break;
+
+            case "P7": {
+                //construct the network in args[1]
+                BayesianNetwork bn = getNetwork(args[1]);
+                String[] order = getOrder(sc);
+                ArrayList<String[]> evidence = getEvidence(sc);
+                // find the most probable explanation of the evidence with max-product elimination.
+                MaxProductElimination mpe = new MaxProductElimination(bn, order, evidence);
+                LinkedHashMap<String, String> explanation = mpe.runMPE();
+                StringBuilder line = new StringBuilder();
+                for (Map.Entry<String, String> entry : explanation.entrySet()) {
+                    line.append(entry.getKey()).append(":").append(entry.getValue()).append(" ");
+                }
+                System.out.println(line.toString().trim());
+                printResult(mpe.getProbability());
+            }
+            break;
         }
         sc.close();
     }
@@ -283,6 +316,27 @@ public class A3main {
         return bn;
     }
 
+    /**
+     * Get a minimum-width order for a query, from the orders saved next to the network if it was
+     * searched before, or by searching for up to a second and saving the result to
+     * <network>.orders in the working directory, printing the path it was saved to.
+     * @param bn the Bayesian network.
+     * @param networkName the name of the network, which names the file of saved orders.
+     * @param variable the queried variable.
+     * @return the elimination order.
+     */
+    private static String[] getOptimalOrder(BayesianNetwork bn, String networkName, String variable) {
+        File saved = new File(networkName + ".orders");
+        String[] order = OptimalOrderSearch.load(saved, bn, variable);
+        if (order == null) {
+            OptimalOrderSearch search = new OptimalOrderSearch(bn, variable);
+            order = search.search(1000);
+            search.save(saved);
+            System.out.println("Saved the elimination order to " + saved.getAbsolutePath());
+        }
+        return order;
+    }
+
     /**
      * Time and average given number of runs. Used to compare orderings.
      * @param numberOfRuns
@@ -307,6 +361,7 @@ public class A3main {
             System.out.println("Duration run - Average of 20 runs: "+averageDuration +" µs");
             System.out.println("Number of joinMarginalise operation - Average of 20 runs: " + averageNumberOfOperations);
             System.out.println("Truth values calculated counter - Average of 20 runs: " + averageTruthValuesCalculated);
+            System.out.println("Variables pruned as irrelevant: " + ve.getPrunedVariables());
         }
     }
 
@@ -0,0 +1,122 @@
+import java.util.ArrayList;
+
+/**
+ * Relevance analysis with the Bayes-ball algorithm (Shachter, 1998). A ball is bounced
+ * through the network from the queried node: it passes through unobserved nodes to their
+ * parents and children, and bounces back from observed nodes towards their parents. The
+ * nodes the ball leaves through the top are the requisite nodes - the only CPTs needed to
+ * answer the query. Every other node is either d-separated from the query by the evidence
+ * or a barren node, and its CPT can be dropped before elimination.
+ *
+ * @author: 210017984
+ */
+public class BayesBall {
+
+    // initialise variables.
+    private ArrayList<Node> requisite = new ArrayList<>(); // nodes whose CPTs are needed.
+    private ArrayList<Node> pruned = new ArrayList<>(); // nodes whose CPTs can be dropped.
+
+    /**
+     * Find the requisite nodes of a query.
+     *
+     * @param bn       the Bayesian network.
+     * @param queried  the queried node.
+     * @param observed the observed nodes.
+     */
+    public BayesBall(BayesianNetwork bn, Node queried, ArrayList<Node> observed) {
+        MoralGraph graph = bn.getMoralGraph();
+        int numberOfNodes = graph.size();
+        boolean[] isObserved = new boolean[numberOfNodes];
+        for (Node node : observed) {
+            isObserved[node.getId()] = true;
+        }
+        boolean[] top = new boolean[numberOfNodes]; // the ball has been passed to the parents.
+        boolean[] bottom = new boolean[numberOfNodes]; // the ball has been passed to the children.
+
+        // every node passes the ball to its parents and to its children at most once, so the
+        // schedule holds at most two visits per edge, plus the queried node. A visit is stored
+        // as the node id times two, plus one if the ball comes from a child.
+        int edges = 0;
+        for (int v = 0; v < numberOfNodes; v++) {
+            edges += graph.getParents(v).length;
+        }
+        int[] schedule = new int[2 * edges + 1];
+        int head = 0;
+        int tail = 0;
+
+        // the queried node receives the ball as if from one of its children.
+        schedule[tail++] = queried.getId() * 2 + 1;
+        while (head < tail) {
+            int id = schedule[head] >> 1;
+            boolean visitedFromChild = (schedule[head++] & 1) == 1;
+
+            if (!isObserved[id] && visitedFromChild) {
+                // an unobserved node passes a ball from a child on to its parents and children.
+                if (!top[id]) {
+                    top[id] = true;
+                    for (int parent : graph.getParents(id)) {
+                        schedule[tail++] = parent * 2 + 1;
+                    }
+                }
+                if (!bottom[id]) {
+                    bottom[id] = true;
+                    for (int child : graph.getChildren(id)) {
+                        schedule[tail++] = child * 2;
+                    }
+                }
+            } else if (!visitedFromChild) {
+                if (isObserved[id]) {
+                    // an observed node bounces a ball from a parent back to its parents.
+                    if (!top[id]) {
+                        top[id] = true;
+                        for (int parent : graph.getParents(id)) {
+                            schedule[tail++] = parent * 2 + 1;
+                        }
+                    }
+                } else if (!bottom[id]) {
+                    // an unobserved node passes a ball from a parent on to its children.
+                    bottom[id] = true;
+                    for (int child : graph.getChildren(id)) {
+                        schedule[tail++] = child * 2;
+                    }
+                }
+            }
+        }
+
+        for (Node node : bn.getNodes()) {
+            if (top[node.getId()]) {
+                requisite.add(node);
+            } else {
+                pruned.add(node);
+            }
+        }
+    }
+
+    /**
+     * Get the requisite nodes, whose CPTs are needed to answer the query.
+     *
+     * @return the requisite nodes, in network order.
+     */
+    public ArrayList<Node> getRequisite() {
+        return requisite;
+    }
+
+    /**
+     * Get the nodes whose CPTs are not needed to answer the query.
+     *
+     * @return the pruned nodes, in network order.
+     */
+    public ArrayList<Node> getPruned() {
+        return pruned;
+    }
+
+    /**
+     * Check whether the CPT of a node is needed to answer the query.
+     *
+     * @param node the node.
+     * @return true if the node is requisite.
+     */
+    public boolean isRequisite(Node node) {
+        return requisite.contains(node);
+    }
+}
@@ -1,4 +1,5 @@
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
@@ -12,6 +13,8 @@ public class BayesianNetwork {
     // initialise variables.
     private ArrayList<Node> nodes;
     private ArrayList<Edge> edges;
+    private MoralGraph moralGraph; // the structure index, rebuilt when a node or edge is added.
+    private int moralGraphStructure = -1; // the number of nodes and edges it was built with.
 
     /**
      * Create a copy of a Bayesian Network.
@@ -65,7 +68,18 @@ public class BayesianNetwork {
      * @param label the label of the new node to be added.
      */
     public Node addNode(String label) {
-        Node node = new Node(label);
+        Node node = new Node(label, nodes.size());
+        nodes.add(node);
+        return node;
+    }
+
+    /**
+     * Creates and adds a new multi-valued node to the Bayesian Network.
+     * @param label the label of the new node to be added.
+     * @param outcomes the values the node can take, in the order used by its CPT.
+     */
+    public Node addNode(String label, String... outcomes) {
+        Node node = new Node(label, nodes.size(), new ArrayList<>(Arrays.asList(outcomes)));
         nodes.add(node);
         return node;
     }
@@ -80,6 +94,34 @@ public class BayesianNetwork {
         edges.add(edge);
     }
 
+    /**
+     * Get the integer-indexed structure of the network and its moral graph. It is built on
+     * the first call and kept until a node or an edge is added.
+     * @return the moral graph of the network.
+     */
+    public synchronized MoralGraph getMoralGraph() {
+        int structure = nodes.size() + edges.size();
+        if (moralGraph == null || structure != moralGraphStructure) {
+            moralGraph = new MoralGraph(nodes);
+            moralGraphStructure = structure;
+        }
+        return moralGraph;
+    }
+
+    /**
+     * Get the version of the network. It changes whenever a node or an edge is added or the
+     * values of any CPT are updated, so results computed at one version can be recognised
+     * as out of date later.
+     * @return the version of the network.
+     */
+    public long getVersion() {
+        long version = (long) nodes.size() + edges.size();
+        for (Node node : nodes) {
+            version += node.getCpt().getVersion();
+        }
+        return version;
+    }
+
     /**
      * Print all the CPT tables in the network.
      */
@@ -1,8 +1,4 @@
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.LinkedHashMap;
-import java.util.stream.Collectors;
-import java.util.stream.DoubleStream;
 
 /**
  * Create a new CPT table.
@@ -14,9 +10,13 @@ public class CPT {
     // initialise variables.
     private Node correspondingNode;
     private String nodeGivenLabel; // label of the given node.
-    private ArrayList<String> nodeLabels;
-    private ArrayList<Double> cptValues; // contains a value for each combination.
-    private LinkedHashMap<ArrayList<Integer>, Double> valuesMap;
+    private ArrayList<String> nodeLabels; // labels of the factor's variables, in factor order.
+    private Factor factor; // contains a value for each combination.
+    private SparseFactor sparseFactor; // contains only the non-zero values.
+    private OffHeapFactor offHeapFactor; // contains a value for each combination, outside the heap.
+    private double density = -1; // fraction of non-zero values, computed on demand.
+    private double[] correspondingMarginal; // marginal of the corresponding node, computed on demand.
+    private int version = 0; // incremented every time the values change.
     private VariableElimination ve;
 
     /**
@@ -24,19 +24,56 @@ public class CPT {
      */
     public CPT() {
         this.nodeLabels = new ArrayList<>();
-        this.valuesMap = new LinkedHashMap<>();
     }
 
     /**
-     * Create a deep copy of an existing CPT.
+     * Create a deep copy of an existing CPT, including values stored off the heap.
      */
     public CPT(CPT copy) {
         this.correspondingNode = copy.correspondingNode;
         this.nodeGivenLabel = copy.nodeGivenLabel;
-        this.nodeLabels = copy.nodeLabels;
-        this.cptValues = copy.cptValues;
-        this.valuesMap = copy.valuesMap;
-        populateMap();
+        this.nodeLabels = new ArrayList<>(copy.nodeLabels);
+        this.factor = copy.factor == null ? null : new Factor(copy.factor);
+        this.sparseFactor = copy.factor == null ? copy.sparseFactor : null;
+        this.offHeapFactor = copy.offHeapFactor == null ? null : new OffHeapFactor(copy.offHeapFactor);
+        this.density = copy.density;
+    }
+
+    /**
+     * Create a new CPT from an already computed factor. Used to create temporary CPTs
+     * in the variable elimination operations.
+     *
+     * @param nodeLabels the labels of the factor's variables, in factor order.
+     * @param factor     the factor holding the values.
+     */
+    public CPT(ArrayList<String> nodeLabels, Factor factor) {
+        this.nodeLabels = nodeLabels;
+        this.factor = factor;
+    }
+
+    /**
+     * Create a new CPT from an already computed sparse factor. The dense factor is only
+     * built if something asks for it.
+     *
+     * @param nodeLabels   the labels of the factor's variables, in factor order.
+     * @param sparseFactor the sparse factor holding the non-zero values.
+     */
+    public CPT(ArrayList<String> nodeLabels, SparseFactor sparseFactor) {
+        this.nodeLabels = nodeLabels;
+        this.sparseFactor = sparseFactor;
+        this.density = sparseFactor.getDensity();
+    }
+
+    /**
+     * Create a new CPT from an intermediate factor stored outside the heap.
+     *
+     * @param nodeLabels    the labels of the factor's variables, in factor order.
+     * @param offHeapFactor the off-heap factor holding the values.
+     */
+    public CPT(ArrayList<String> nodeLabels, OffHeapFactor offHeapFactor) {
+        this.nodeLabels = nodeLabels;
+        this.offHeapFactor = offHeapFactor;
+        this.density = 1.0; // treated as dense.
     }
 
     /**
@@ -47,7 +84,6 @@ public class CPT {
      */
     public CPT(String nodeGivenLabel) {
         this.nodeLabels = new ArrayList<>();
-        this.valuesMap = new LinkedHashMap<>();
         this.nodeGivenLabel = nodeGivenLabel;
     }
 
@@ -59,7 +95,6 @@ public class CPT {
      */
     public CPT(Node correspondingNode) {
         this.nodeLabels = new ArrayList<>();
-        this.valuesMap = new LinkedHashMap<>();
         this.correspondingNode = correspondingNode;
         this.nodeGivenLabel = correspondingNode.getLabel();
     }
@@ -91,18 +126,99 @@ public class CPT {
         this.nodeLabels = nodeLabels;
     }
 
+    /**
+     * Get the factor backing the CPT.
+     *
+     * @return the factor of the CPT.
+     */
+    public Factor getFactor() {
+        if (factor == null && sparseFactor != null) {
+            factor = sparseFactor.toDense();
+        } else if (factor == null && offHeapFactor != null) {
+            factor = offHeapFactor.toDense();
+            releaseOffHeap();
+        }
+        return factor;
+    }
+
+    /**
+     * Get read access to the values of the CPT in whatever form they are stored, without
+     * building a dense factor.
+     *
+     * @return the table of the CPT.
+     */
+    public FactorTable getTable() {
+        if (offHeapFactor != null) {
+            return offHeapFactor;
+        }
+        return factor != null ? factor : sparseFactor;
+    }
+
+    /**
+     * Whether the values of the CPT are stored outside the heap.
+     *
+     * @return true if the CPT is backed by an off-heap factor.
+     */
+    public boolean isOffHeap() {
+        return offHeapFactor != null;
+    }
+
+    /**
+     * Release the off-heap storage of the CPT, if any. The CPT must not be used afterwards
+     * unless it was copied to the heap.
+     */
+    public void releaseOffHeap() {
+        if (offHeapFactor != null) {
+            offHeapFactor.close();
+            offHeapFactor = null;
+        }
+    }
+
+    /**
+     * Get the ids of the CPT's variables, without building a dense factor for sparse CPTs.
+     *
+     * @return the variable ids, in factor order.
+     */
+    public int[] getVariables() {
+        return getTable().getVariables();
+    }
+
+    /**
+     * Get the sparse version of the factor backing the CPT.
+     *
+     * @return the sparse factor of the CPT.
+     */
+    public SparseFactor getSparseFactor() {
+        if (sparseFactor == null && factor != null) {
+            sparseFactor = SparseFactor.fromDense(factor);
+        }
+        return sparseFactor;
+    }
+
+    /**
+     * Get the fraction of the CPT's values that are not zero.
+     *
+     * @return the density of the CPT.
+     */
+    public double getDensity() {
+        if (density < 0) {
+            density = getFactor().getDensity();
+        }
+        return density;
+    }
+
     /**
      * Get CPT's values.
      *
      * @return the values of the CPT.
      */
-    public ArrayList<Double> getCptValues() {
-        return cptValues;
+    public double[] getCptValues() {
+        return getFactor() == null ? null : factor.getValues();
     }
 
     /**
-     * Add CPT values both in the arraylist and the truth - value map. Used mainly
-     * when creating a new Bayesian Network - add multiple values at once without ArrayList.
+     * Add CPT values to the factor of the CPT. Used mainly when creating a new Bayesian
+     * Network - add multiple values at once, in the order of the truth table.
      *
      * @param values the values to be added to the CPT.
      */
@@ -111,111 +227,77 @@ public class CPT {
         //
         nodesUsedForLabels.addAll(correspondingNode.getParents());
         nodesUsedForLabels.add(correspondingNode);
-        // populate node labels ArrayList.
-        for (Node n : nodesUsedForLabels) {
+
+        int[] variables = new int[nodesUsedForLabels.size()];
+        int[] cardinalities = new int[nodesUsedForLabels.size()];
+        // populate node labels ArrayList and the factor's variables.
+        this.nodeLabels = new ArrayList<>();
+        for (int i = 0; i < nodesUsedForLabels.size(); i++) {
+            Node n = nodesUsedForLabels.get(i);
             this.nodeLabels.add(n.getLabel());
+            variables[i] = n.getId();
+            cardinalities[i] = n.getCardinality();
         }
-        this.cptValues = DoubleStream.of(values).boxed().collect(Collectors.toCollection(ArrayList::new));
-        populateMap();
+        this.factor = new Factor(variables, cardinalities, values.clone());
+        this.sparseFactor = null;
+        this.density = -1;
+        this.correspondingMarginal = null;
+        version++;
     }
 
     /**
-     * Add CPT values in the form of an ArrayList both in the arraylist and the truth - value map.
+     * Update the CPT values in place.
      *
-     * @param values the values to be added to the CPT.
+     * @param newValues the new values to be updated.
      */
-    public void addCPTvalues(ArrayList<Double> values) {
-        this.cptValues = values;
-        populateMap();
+    public void updateCPTvalues(double[] newValues) {
+        System.arraycopy(newValues, 0, getFactor().getValues(), 0, newValues.length);
+        // the sparse copy, the density and the marginal are out of date.
+        sparseFactor = null;
+        density = -1;
+        correspondingMarginal = null;
+        version++;
     }
 
     /**
-     * Update the CPT values both in the arraylist and the map.
+     * Get the version of the CPT values, which changes every time they are updated.
      *
-     * @param newValues the new values to be updated.
+     * @return the number of updates made to the CPT.
      */
-    public void updateCPTvalues(ArrayList<Double> newValues) {
-        for (int i = 0; i < newValues.size(); i++) {
-            cptValues.set(i, newValues.get(i));
-        }
-        populateMap();
+    public int getVersion() {
+        return version;
     }
 
     /**
      * Get a seeked truth value for the corresponding's node marginalised
      * CPT table - this is only used for gibbs sampling.
      *
-     * @param value the value we want - can be either 1 or 0 (binary).
+     * @param value the index of the value we want.
      * @return the CPT probability.
      */
     public double getCorrespondingNodeTruthValue(int value) {
-        ve = new VariableElimination();
-        int index = nodeLabels.indexOf(correspondingNode.getLabel()); // get index of node label.
-
-        ArrayList<String> nodeLabelsWithoutCorresponding = new ArrayList<>(nodeLabels);
-        nodeLabelsWithoutCorresponding.remove(correspondingNode.getLabel());
-        CPT tempCPT = new CPT(this);
-
-        // Marginalise the table so that only the own probability remains.
-        for (String label : nodeLabelsWithoutCorresponding) {
-            tempCPT = ve.marginalise(tempCPT, label);
-        }
-        tempCPT.normalize(); // normalize values.
-
-        return tempCPT.getCPTSingleProb(value);
+        return getCorrespondingNodeMarginal()[value];
     }
 
     /**
-     * When evidence factor is equal to true then set all values of the CPT in EvFactor where E = F to zero,
-     * and vice versa.
+     * Get the corresponding node's marginalised and normalised CPT table, one probability
+     * per value. It is computed once and cached until the CPT values change.
      *
-     * @param changeTrueVals if true sets all the false values to zero, and
-     *                       vice versa.
+     * @return the marginal probability of every value of the corresponding node.
      */
-    public void setToZero(boolean changeTrueVals) {
-        if (changeTrueVals) {
-            // update to zero when Evidence is equal to true.
-            for (int i = 0; i < cptValues.size() - 1; i += 2) {
-                // update the value to 0.
-                cptValues.set(i, 0.0);
-            }
-        } else {
-            // update to zero when Evidence is equal to false.
-            for (int i = 1; i < cptValues.size(); i += 2) {
-                // update the value to 0.
-                cptValues.set(i, 0.0);
-            }
-        }
-        // update map.
-        populateMap();
-    }
+    public double[] getCorrespondingNodeMarginal() {
+        if (correspondingMarginal == null) {
+            ve = new VariableElimination();
 
+            ArrayList<String> nodeLabelsWithoutCorresponding = new ArrayList<>(nodeLabels);
+            nodeLabelsWithoutCorresponding.remove(correspondingNode.getLabel());
+            // Marginalise the table in one pass so that only the own probability remains.
+            CPT tempCPT = ve.marginalise(this, nodeLabelsWithoutCorresponding);
+            tempCPT.normalize(); // normalize values.
 
-    /**
-     * Populate the truth combination - value map.
-     */
-    private void populateMap() {
-        // Get the number of nodes in this CPT and the size of rows.
-        int numberNodes = nodeLabels.size();
-        int size = (int) Math.pow(2, numberNodes);
-
-        // Create truth tables.
-        for (int i = 0; i < size; i++) {
-            // ArrayList stores all the values for the current column. Used as key for the HashMap
-            ArrayList<Integer> valuesTableRow = new ArrayList<>();
-            int repeat = numberNodes - Integer.toBinaryString(i).length();
-
-            String truths = "0".repeat(repeat) + Integer.toBinaryString(i);
-
-            for (char c : truths.toCharArray()) {
-                // add the character (0 or 1) for the specific element in the ArrayList.
-                valuesTableRow.add(Character.getNumericValue(c));
-            }
-
-            // add/update CPT values.
-            double nodeValue = cptValues.get(i);
-            valuesMap.put(valuesTableRow, nodeValue);
+            correspondingMarginal = tempCPT.getCptValues();
         }
+        return correspondingMarginal;
     }
 
     /**
@@ -224,44 +306,23 @@ public class CPT {
      * @param print whether to print the table.
      */
     public void constructAndPrintCPT(boolean print) {
-        // Get the number of nodes in this CPT.
-        int numberNodes = nodeLabels.size();
-        int size = (int) Math.pow(2, numberNodes);
-
-        if (print) {
-            if (cptValues != null) {
-                printCPTHead();
-            }
+        if (!print) {
+            return;
         }
-        // Create truth tables.
-        for (int i = 0; i < size; i++) {
-            // ArrayList stores all the values for the current column. Used as key for the HashMap
-            ArrayList<Integer> valuesTableRow = new ArrayList<>();
-
-            int repeat = numberNodes - Integer.toBinaryString(i).length();
-
-            String truths = "0".repeat(repeat) + Integer.toBinaryString(i);
-
-            for (char c : truths.toCharArray()) {
-                if (print) {
-                    System.out.print(c + "\t");  // print the char value.
-                }
-                // add the character (0 or 1) for the specific element in the ArrayList.
-                valuesTableRow.add(Character.getNumericValue(c));
-            }
-
-            if (cptValues != null) {
-                double nodeValue = cptValues.get(i);
-                if (print) {
-                    System.out.println("|" + nodeValue); // print node value.
-                }
-                valuesMap.put(valuesTableRow, nodeValue);
-            } else {
-                if (print) {
-                    System.out.println("|" + 0);
-                    valuesMap.put(valuesTableRow, 0.0);
-                }
+        Factor table = getFactor();
+        if (table == null) {
+            System.out.println("|" + 0);
+            return;
+        }
+        printCPTHead();
+        int[] strides = table.getStrides();
+        int[] cardinalities = table.getCardinalities();
+        // Create truth tables - decode the mixed radix digits of every offset.
+        for (int i = 0; i < table.size(); i++) {
+            for (int v = 0; v < strides.length; v++) {
+                System.out.print((i / strides[v]) % cardinalities[v] + "\t");  // print the value index.
             }
+            System.out.println("|" + table.getValue(i)); // print node value.
         }
     }
 
@@ -300,25 +361,37 @@ public class CPT {
     /**
      * Get a single probability in a CPT with only one variable.
      *
-     * @param truth the value we are looking (1 or 0 - binary).
+     * @param truth the index of the value we are looking for.
      * @return
      */
     public double getCPTSingleProb(int truth) {
-        ArrayList<Integer> temp = new ArrayList<>();
-        temp.add(truth);
-        return valuesMap.get(temp);
+        return getFactor().getValue(truth);
     }
 
     /**
      * Get CPT probability for a combination fo truth values - used when multiple
      * variable combinations in the CPT table.
      *
-     * @param truthValues
-     * @return
+     * @param truthValues one truth value for each of the CPT's labels, in the same order.
+     * @return the probability stored at the computed offset.
+     */
+    public double getCPTProbability(int... truthValues) {
+        return getFactor().getValue(truthValues);
+    }
+
+    /**
+     * Get CPT probability for a combination fo truth values given as a list.
+     *
+     * @param truthValues one truth value for each of the CPT's labels, in the same order.
+     * @return the probability stored at the computed offset.
      */
     public double getCPTProbability(ArrayList<Integer> truthValues) {
-        populateMap();
-        return valuesMap.get(truthValues);
+        int offset = 0;
+        int[] strides = getFactor().getStrides();
+        for (int i = 0; i < truthValues.size(); i++) {
+            offset += truthValues.get(i) * strides[i];
+        }
+        return getFactor().getValue(offset);
     }
 
 
@@ -329,74 +402,15 @@ public class CPT {
                 '}';
     }
 
-    /**
-     * Get all the combinations of truth values in the CPT.
-     * @return
-     */
-    public ArrayList<ArrayList<Integer>> getCombinations() {
-        ArrayList<ArrayList<Integer>> truthValues = new ArrayList<>();
-
-        // Get the size of the truth values combinations.
-        int size = (int) Math.pow(2, nodeLabels.size());
-
-        // Initialise new arraylists.
-        for (int c = 0; c < size; c++) {
-            truthValues.add(new ArrayList<>());
-        }
-
-        // generate the combinations.
-        generateCombinations(size, truthValues);
-
-        return truthValues;
-    }
-
-    /**
-     * Generate all the combinations and place them in an arraylist of arraylists.
-     * @param size the size of the combinations in the truth values table.
-     * @param truthValues the initialised truth values.
-     */
-    private void generateCombinations(int size, ArrayList<ArrayList<Integer>> truthValues) {
-        int locationIndex = size / 2;
-        int prevIndex = size;
-
-        // iterate though the node labels.
-        for (String l : nodeLabels) {
-            int count = 0;
-            // iterate through the size of the possible truth values.
-            for (int i = 0; i < size; i++) {
-                // Add the combinations of zero and ones.
-                if (count < locationIndex) {
-                    truthValues.get(i).add(1);
-                } else {
-                    truthValues.get(i).add(0);
-                }
-                count++;
-
-                if (count == prevIndex) {
-                    count = 0;
-                }
-            }
-            prevIndex = locationIndex;
-            locationIndex = locationIndex/2;
-        }
-    }
-
     /**
      * Normalise the variables. Used to make probabilities in a table sum up to one.
      */
     public void normalize() {
-        // store the normalized values.
-        ArrayList<Double> normalizedValues = new ArrayList<>();
-
-        double trueValue = getCPTSingleProb(1);
-        double falseValue = getCPTSingleProb(0);
-        double sumValue = trueValue + falseValue;
-
-        normalizedValues.add(falseValue / sumValue); // add normalised false value.
-        normalizedValues.add(trueValue / sumValue); // add normalized true value.
-
-        // update joined CPT values.
-        updateCPTvalues(normalizedValues);
+        // update joined CPT values with the normalized values.
+        FactorOperations.normalize(getFactor().getValues());
+        sparseFactor = null; // the sparse copy and the marginal are out of date.
+        correspondingMarginal = null;
+        version++;
     }
 
 }
@@ -0,0 +1,220 @@
+/**
+ * A factor over a set of discrete variables, stored as a single flat array of
+ * probabilities. Variables are identified by their node ids, and every variable has a
+ * cardinality (the number of values it can take) and a stride (how far apart two
+ * consecutive values of that variable are in the array). Values are laid out row-major,
+ * with the last variable changing fastest - the same order the CPT values are given in.
+ *
+ * @author: 210017984
+ */
+public class Factor implements FactorTable {
+
+    // initialise variables.
+    private int[] variables; // ids of the variables in the factor.
+    private int[] cardinalities; // number of values each variable can take.
+    private int[] strides; // offset step for each variable.
+    private double[] values; // one value for each combination.
+
+    /**
+     * Create a new factor with all values set to zero.
+     *
+     * @param variables     the ids of the variables in the factor.
+     * @param cardinalities the cardinality of each variable.
+     */
+    public Factor(int[] variables, int[] cardinalities) {
+        this(variables, cardinalities, FactorArena.allocate(computeSize(cardinalities)));
+    }
+
+    /**
+     * Create a new factor with the given values.
+     *
+     * @param variables     the ids of the variables in the factor.
+     * @param cardinalities the cardinality of each variable.
+     * @param values        the values of the factor, in row-major order.
+     */
+    public Factor(int[] variables, int[] cardinalities, double[] values) {
+        if (variables.length != cardinalities.length) {
+            throw new IllegalArgumentException("Each variable needs exactly one cardinality.");
+        }
+        if (values.length != computeSize(cardinalities)) {
+            throw new IllegalArgumentException("Expected " + computeSize(cardinalities) + " values but got " + values.length + ".");
+        }
+        this.variables = variables;
+        this.cardinalities = cardinalities;
+        this.strides = computeStrides(cardinalities);
+        this.values = values;
+    }
+
+    /**
+     * Create a deep copy of an existing factor.
+     */
+    public Factor(Factor copy) {
+        this.variables = copy.variables.clone();
+        this.cardinalities = copy.cardinalities.clone();
+        this.strides = copy.strides.clone();
+        this.values = copy.values.clone();
+    }
+
+    /**
+     * Get the ids of the variables in the factor.
+     *
+     * @return the variable ids.
+     */
+    public int[] getVariables() {
+        return variables;
+    }
+
+    /**
+     * Get the cardinality of each variable in the factor.
+     *
+     * @return the cardinalities.
+     */
+    public int[] getCardinalities() {
+        return cardinalities;
+    }
+
+    /**
+     * Get the stride of each variable in the factor.
+     *
+     * @return the strides.
+     */
+    public int[] getStrides() {
+        return strides;
+    }
+
+    /**
+     * Get the values of the factor.
+     *
+     * @return the flat array of values.
+     */
+    public double[] getValues() {
+        return values;
+    }
+
+    /**
+     * Get the number of values (combinations) in the factor.
+     *
+     * @return the size of the factor.
+     */
+    public int size() {
+        return values.length;
+    }
+
+    /**
+     * Count the values of the factor that are not zero.
+     *
+     * @return the number of non-zero values.
+     */
+    public int countNonZeros() {
+        int nonZeros = 0;
+        for (double value : values) {
+            if (value != 0.0) {
+                nonZeros++;
+            }
+        }
+        return nonZeros;
+    }
+
+    /**
+     * Get the fraction of the values of the factor that are not zero.
+     *
+     * @return the density of the factor.
+     */
+    public double getDensity() {
+        return (double) countNonZeros() / values.length;
+    }
+
+    /**
+     * Get the position of a variable in the factor.
+     *
+     * @param variable the id of the variable.
+     * @return the position of the variable, or -1 if it is not in the factor.
+     */
+    public int indexOf(int variable) {
+        for (int i = 0; i < variables.length; i++) {
+            if (variables[i] == variable) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Get the stride of a variable, or zero if the factor does not contain it. A zero stride
+     * lets callers walk a factor using the assignment of a larger factor.
+     *
+     * @param variable the id of the variable.
+     * @return the stride of the variable in this factor.
+     */
+    public int strideOf(int variable) {
+        int index = indexOf(variable);
+        return index == -1 ? 0 : strides[index];
+    }
+
+    /**
+     * Compute the offset of a combination of values.
+     *
+     * @param assignment one value for each variable of the factor, in factor order.
+     * @return the offset of the combination in the values array.
+     */
+    public int offset(int... assignment) {
+        int offset = 0;
+        for (int i = 0; i < assignment.length; i++) {
+            offset += assignment[i] * strides[i];
+        }
+        return offset;
+    }
+
+    /**
+     * Get the value stored at a given offset.
+     *
+     * @param offset the offset of the combination.
+     * @return the value of the combination.
+     */
+    public double getValue(int offset) {
+        return values[offset];
+    }
+
+    /**
+     * Get the value of a combination of values.
+     *
+     * @param assignment one value for each variable of the factor, in factor order.
+     * @return the value of the combination.
+     */
+    public double getValue(int... assignment) {
+        return values[offset(assignment)];
+    }
+
+    /**
+     * Compute the number of combinations for the given cardinalities.
+     *
+     * @param cardinalities the cardinality of each variable.
+     * @return the product of the cardinalities.
+     */
+    public static int computeSize(int[] cardinalities) {
+        long size = 1;
+        for (int cardinality : cardinalities) {
+            size *= cardinality;
+        }
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Factor with " + size + " entries is too large.");
+        }
+        return (int) size;
+    }
+
+    /**
+     * Compute the strides for the given cardinalities (last variable changes fastest).
+     *
+     * @param cardinalities the cardinality of each variable.
+     * @return the stride of each variable.
+     */
+    public static int[] computeStrides(int[] cardinalities) {
+        int[] strides = new int[cardinalities.length];
+        int stride = 1;
+        for (int i = cardinalities.length - 1; i >= 0; i--) {
+            strides[i] = stride;
+            stride *= cardinalities[i];
+        }
+        return strides;
+    }
+}
@@ -0,0 +1,216 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * A per-thread pool of value arrays for intermediate factors. While an arena is open on
+ * a thread, every new factor takes its array from the arena, and arrays handed back (or
+ * still handed out when the arena closes) are kept for the next factor of the same size.
+ * Queries with the same shape therefore reuse the same arrays step after step and query
+ * after query instead of allocating new ones. Only the thread that opened the arena takes
+ * arrays from it, and only while it runs its own query: a thread waiting on the fork/join pool
+ * suspends its arena, so a task it steals from another query allocates its own arrays.
+ *
+ * @author: 210017984
+ */
+public class FactorArena {
+
+    // maximum number of values kept in the pool (16M values, 128MB) - larger pools drop arrays.
+    public static final int DEFAULT_RETAINED_VALUES = 1 << 24;
+
+    private static final ThreadLocal<FactorArena> CURRENT = ThreadLocal.withInitial(FactorArena::new);
+    private static final ThreadLocal<FactorArena> ACTIVE = new ThreadLocal<>(); // the arena new factors take arrays from.
+
+    // initialise variables.
+    private HashMap<Integer, ArrayDeque<double[]>> free = new HashMap<>(); // pooled arrays by length.
+    private Set<double[]> inUse = Collections.newSetFromMap(new IdentityHashMap<>()); // arrays handed out.
+    private long retainedValues = 0; // number of values held in the free lists.
+    private long maxRetainedValues = DEFAULT_RETAINED_VALUES;
+    private int depth = 0; // number of nested opens.
+    private Thread owner; // the thread the arena belongs to.
+    private ArrayList<FactorArena> previous = new ArrayList<>(); // the arena active before each open.
+    private int buffersAllocated = 0;
+    private int buffersReused = 0;
+
+    /**
+     * Get the arena of the current thread.
+     *
+     * @return the thread's arena.
+     */
+    public static FactorArena current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Get a zeroed array for a new factor - from the arena active on the current thread,
+     * otherwise a freshly allocated one.
+     *
+     * @param size the number of values.
+     * @return an array of the given length, filled with zeros.
+     */
+    public static double[] allocate(int size) {
+        FactorArena arena = ACTIVE.get();
+        return arena != null ? arena.take(size) : new double[size];
+    }
+
+    /**
+     * Make an arena active on the current thread for the work of its query. An arena that
+     * belongs to another thread, or is not open, is never made active: the work then
+     * allocates its own arrays.
+     *
+     * @param arena the arena of the query the work belongs to, or null to suspend the active arena.
+     * @return the arena that was active before, to hand to {@link #restore(FactorArena)}.
+     */
+    public static FactorArena enter(FactorArena arena) {
+        FactorArena active = ACTIVE.get();
+        ACTIVE.set(arena != null && arena.depth > 0 && arena.owner == Thread.currentThread() ? arena : null);
+        return active;
+    }
+
+    /**
+     * Make the arena that was active before {@link #enter(FactorArena)} active again.
+     *
+     * @param arena the arena returned by enter.
+     */
+    public static void restore(FactorArena arena) {
+        ACTIVE.set(arena);
+    }
+
+    /**
+     * Open the arena on the thread it belongs to and make it active. Opens can be nested;
+     * the arena only reclaims its arrays when the outermost open is closed.
+     */
+    public void open() {
+        if (depth++ == 0) {
+            owner = Thread.currentThread();
+        }
+        previous.add(ACTIVE.get());
+        ACTIVE.set(this);
+    }
+
+    /**
+     * Close the arena, reclaiming every array still handed out if this was the outermost open,
+     * and make the arena active before the matching open active again. Factors created while
+     * the arena was open must not be used afterwards.
+     */
+    public void close() {
+        if (depth > 0) {
+            ACTIVE.set(previous.remove(previous.size() - 1));
+            if (--depth == 0) {
+                for (double[] values : inUse) {
+                    keep(values);
+                }
+                inUse.clear();
+                owner = null;
+            }
+        }
+    }
+
+    /**
+     * Whether the arena is currently open.
+     *
+     * @return true if new factors take their arrays from the arena.
+     */
+    public boolean isOpen() {
+        return depth > 0;
+    }
+
+    /**
+     * Hand back the array of a factor that is no longer needed. Arrays that did not come from
+     * the arena (such as the network's own CPTs), and calls from other threads, are ignored.
+     *
+     * @param table the factor that is no longer needed.
+     */
+    public void release(FactorTable table) {
+        if (owner == Thread.currentThread() && table instanceof Factor
+                && inUse.remove(((Factor) table).getValues())) {
+            keep(((Factor) table).getValues());
+        }
+    }
+
+    /**
+     * Make sure the pool holds arrays for the given factor sizes, typically the sizes an
+     * elimination order is planned to produce.
+     *
+     * @param sizes the sizes of the factors about to be created.
+     */
+    public void reserve(int[] sizes) {
+        HashMap<Integer, Integer> needed = new HashMap<>();
+        for (int size : sizes) {
+            needed.merge(size, 1, Integer::sum);
+        }
+        for (Integer size : needed.keySet()) {
+            ArrayDeque<double[]> pooled = free.computeIfAbsent(size, s -> new ArrayDeque<>());
+            while (pooled.size() < needed.get(size) && retainedValues + size <= maxRetainedValues) {
+                pooled.push(new double[size]);
+                retainedValues += size;
+                buffersAllocated++;
+            }
+        }
+    }
+
+    /**
+     * Set the maximum number of values kept in the pool.
+     *
+     * @param maxRetainedValues the pool limit, in values.
+     */
+    public void setMaxRetainedValues(long maxRetainedValues) {
+        this.maxRetainedValues = maxRetainedValues;
+    }
+
+    /**
+     * Get the number of arrays the arena had to allocate.
+     *
+     * @return the number of allocated arrays.
+     */
+    public int getBuffersAllocated() {
+        return buffersAllocated;
+    }
+
+    /**
+     * Get the number of times an array was reused from the pool.
+     *
+     * @return the number of reused arrays.
+     */
+    public int getBuffersReused() {
+        return buffersReused;
+    }
+
+    /**
+     * Take a zeroed array from the pool, or allocate one if none of the right length is free.
+     *
+     * @param size the number of values.
+     * @return the array, registered as handed out.
+     */
+    private double[] take(int size) {
+        ArrayDeque<double[]> pooled = free.get(size);
+        double[] values;
+        if (pooled != null && !pooled.isEmpty()) {
+            values = pooled.pop();
+            retainedValues -= size;
+            Arrays.fill(values, 0.0);
+            buffersReused++;
+        } else {
+            values = new double[size];
+            buffersAllocated++;
+        }
+        inUse.add(values);
+        return values;
+    }
+
+    /**
+     * Put an array in the pool, unless the pool is full.
+     *
+     * @param values the array to keep.
+     */
+    private void keep(double[] values) {
+        if (retainedValues + values.length <= maxRetainedValues) {
+            free.computeIfAbsent(values.length, s -> new ArrayDeque<>()).push(values);
+            retainedValues += values.length;
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/**
+ * Inner loops for the cases where factor operations touch memory contiguously: summing
+ * out the last or the first variables, multiplying factors whose variables line up, and
+ * normalising. The loops are plain unit-stride array loops without branches, which the JIT
+ * compiles to SIMD instructions (SSE/AVX2/AVX-512, whatever the CPU offers). Reductions use
+ * four independent accumulators so that they are not serialised on a single addition.
+ *
+ * @author: 210017984
+ */
+public class FactorKernels {
+
+    /**
+     * Sum consecutive blocks of values - summing out the last variables of a factor.
+     *
+     * @param values    the values to sum, a whole number of blocks.
+     * @param result    receives one sum per block.
+     * @param blockSize the number of consecutive values summed into each result.
+     */
+    public static void sumBlocks(double[] values, double[] result, int blockSize) {
+        for (int r = 0, start = 0; r < result.length; r++, start += blockSize) {
+            result[r] = sum(values, start, blockSize);
+        }
+    }
+
+    /**
+     * Add consecutive stripes of values together - summing out the first variables of a factor.
+     *
+     * @param values the values to sum, a whole number of stripes of the result's length.
+     * @param result receives the element-wise sum of the stripes.
+     */
+    public static void addStripes(double[] values, double[] result) {
+        int length = result.length;
+        System.arraycopy(values, 0, result, 0, length);
+        for (int start = length; start < values.length; start += length) {
+            for (int j = 0; j < length; j++) {
+                result[j] += values[start + j];
+            }
+        }
+    }
+
+    /**
+     * Multiply a factor with one whose variables are the last variables of the first, in the
+     * same order. The smaller factor is repeated over the larger one, and if both have the same
+     * variables this is a plain element-wise product.
+     *
+     * @param values      the values of the larger factor.
+     * @param broadcasted the values of the smaller factor.
+     * @param result      receives the product, the same length as the larger factor.
+     */
+    public static void multiplyBroadcast(double[] values, double[] broadcasted, double[] result) {
+        int length = broadcasted.length;
+        for (int start = 0; start < values.length; start += length) {
+            for (int j = 0; j < length; j++) {
+                result[start + j] = values[start + j] * broadcasted[j];
+            }
+        }
+    }
+
+    /**
+     * Multiply a range of values element-wise into a target array.
+     *
+     * @param target the values multiplied in place.
+     * @param values the values to multiply by.
+     * @param start  the position in values matching the first target value.
+     */
+    public static void multiplyInto(double[] target, double[] values, int start) {
+        for (int j = 0; j < target.length; j++) {
+            target[j] *= values[start + j];
+        }
+    }
+
+    /**
+     * Add an array element-wise into a range of a target array.
+     *
+     * @param target the values added to in place.
+     * @param start  the position in target matching the first value.
+     * @param values the values to add.
+     */
+    public static void addInto(double[] target, int start, double[] values) {
+        for (int j = 0; j < values.length; j++) {
+            target[start + j] += values[j];
+        }
+    }
+
+    /**
+     * Sum all the values of an array.
+     *
+     * @param values the values to sum.
+     * @return the sum of the values.
+     */
+    public static double sum(double[] values) {
+        return sum(values, 0, values.length);
+    }
+
+    /**
+     * Divide every value of an array by the same divisor.
+     *
+     * @param values  the values to divide in place.
+     * @param divisor the divisor.
+     */
+    public static void divide(double[] values, double divisor) {
+        for (int i = 0; i < values.length; i++) {
+            values[i] /= divisor;
+        }
+    }
+
+    /**
+     * Sum a range of values with four independent accumulators.
+     *
+     * @param values the values to sum.
+     * @param start  the first position to sum.
+     * @param length the number of values to sum.
+     * @return the sum of the range.
+     */
+    private static double sum(double[] values, int start, int length) {
+        double sum0 = 0.0, sum1 = 0.0, sum2 = 0.0, sum3 = 0.0;
+        int end = start + length;
+        int i = start;
+        for (; i + 3 < end; i += 4) {
+            sum0 += values[i];
+            sum1 += values[i + 1];
+            sum2 += values[i + 2];
+            sum3 += values[i + 3];
+        }
+        for (; i < end; i++) {
+            sum0 += values[i];
+        }
+        return (sum0 + sum1) + (sum2 + sum3);
+    }
+}
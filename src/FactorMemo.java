@@ -0,0 +1,135 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A memo table of intermediate factors shared by the queries on one Bayesian network. An
+ * intermediate factor only depends on the CPTs it was computed from, the variables summed out
+ * of them and the evidence on their variables, so queries that eliminate the same part of the
+ * network with the same relevant evidence can take the factor from the memo instead of
+ * recomputing it. The memo holds at most a given number of values, evicting the least recently
+ * used factors first, and is dropped whenever the network's version changes.
+ *
+ * @author: 210017984
+ */
+public class FactorMemo {
+
+    // number of values kept by default (4M values, 32MB).
+    public static final long DEFAULT_MAX_VALUES = 1 << 22;
+
+    // initialise variables.
+    private BayesianNetwork bn;
+    private LinkedHashMap<String, CPT> factors = new LinkedHashMap<>(16, 0.75f, true); // least recently used first.
+    private long maxValues;
+    private long retainedValues = 0;
+    private long networkVersion;
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * Create a memo holding up to DEFAULT_MAX_VALUES values.
+     *
+     * @param bn the Bayesian network the factors are computed on.
+     */
+    public FactorMemo(BayesianNetwork bn) {
+        this(bn, DEFAULT_MAX_VALUES);
+    }
+
+    /**
+     * Create a memo holding up to a given number of values.
+     *
+     * @param bn        the Bayesian network the factors are computed on.
+     * @param maxValues the maximum number of values kept.
+     */
+    public FactorMemo(BayesianNetwork bn, long maxValues) {
+        this.bn = bn;
+        this.maxValues = maxValues;
+        this.networkVersion = bn.getVersion();
+    }
+
+    /**
+     * Get a copy of a memoised factor.
+     *
+     * @param key the key of the factor.
+     * @return a copy the caller can modify, or null if the factor is not memoised.
+     */
+    public synchronized CPT get(String key) {
+        checkVersion();
+        CPT cpt = factors.get(key);
+        if (cpt == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return new CPT(cpt);
+    }
+
+    /**
+     * Memoise a copy of a factor, evicting the least recently used factors if the memo is full.
+     * Factors stored off the heap or larger than the whole memo are not kept.
+     *
+     * @param key the key of the factor.
+     * @param cpt the factor.
+     */
+    public synchronized void put(String key, CPT cpt) {
+        checkVersion();
+        long size = cpt.getTable().size();
+        if (cpt.isOffHeap() || size > maxValues || factors.containsKey(key)) {
+            return;
+        }
+        factors.put(key, new CPT(cpt));
+        retainedValues += size;
+        Iterator<Map.Entry<String, CPT>> eldest = factors.entrySet().iterator();
+        while (retainedValues > maxValues && eldest.hasNext()) {
+            retainedValues -= eldest.next().getValue().getTable().size();
+            eldest.remove();
+        }
+    }
+
+    /**
+     * Drop every memoised factor.
+     */
+    public synchronized void clear() {
+        factors.clear();
+        retainedValues = 0;
+    }
+
+    /**
+     * Get the number of values held by the memo.
+     *
+     * @return the number of values.
+     */
+    public synchronized long getRetainedValues() {
+        return retainedValues;
+    }
+
+    /**
+     * Get the number of factors taken from the memo.
+     *
+     * @return the number of hits.
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * Get the number of factors looked up but not found.
+     *
+     * @return the number of misses.
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Drop the memo if the network changed since its factors were computed. Must be called
+     * while holding the lock.
+     */
+    private void checkVersion() {
+        long version = bn.getVersion();
+        if (version != networkVersion) {
+            clear();
+            networkVersion = version;
+        }
+    }
+}
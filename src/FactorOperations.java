@@ -0,0 +1,824 @@
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * Kernels operating directly on the flat arrays of factors. Every kernel walks its
+ * input once with an odometer over the variables' values and keeps the offsets of the
+ * other factors up to date through their strides, so no combinations are generated or
+ * looked up.
+ *
+ * @author: 210017984
+ */
+public class FactorOperations {
+
+    // use the contiguous (SIMD friendly) kernels where the layout allows, unless started with -Dfactor.kernels=scalar.
+    private static final boolean CONTIGUOUS_KERNELS = !"scalar".equalsIgnoreCase(System.getProperty("factor.kernels"));
+
+    // factors with at least this many combinations (256K) are computed in parallel chunks by default.
+    public static final int DEFAULT_PARALLEL_THRESHOLD = 1 << 18;
+
+    // the number of combinations above which products and sum-outs are split over the cores (-Dfactor.parallelThreshold),
+    // volatile so a change is seen by kernels already running on other threads.
+    private static volatile int parallelThreshold = Integer.getInteger("factor.parallelThreshold", DEFAULT_PARALLEL_THRESHOLD);
+
+    /**
+     * Set the number of combinations above which products and sum-outs are split into chunks
+     * computed in parallel on the common fork/join pool.
+     *
+     * @param threshold the number of combinations, or Integer.MAX_VALUE to always run on one thread.
+     */
+    public static void setParallelThreshold(int threshold) {
+        parallelThreshold = threshold;
+    }
+
+    /**
+     * Whether the contiguous kernels were selected at startup.
+     *
+     * @return true if contiguous cases use the FactorKernels loops, false if everything runs the scalar odometer.
+     */
+    public static boolean usesContiguousKernels() {
+        return CONTIGUOUS_KERNELS;
+    }
+
+    /**
+     * Sum out a set of variables from a factor in a single pass.
+     *
+     * @param factor    the factor to marginalise.
+     * @param variables the ids of the variables to sum out. Ids not in the factor are ignored.
+     * @return a new factor over the remaining variables.
+     */
+    public static Factor sumOut(Factor factor, int... variables) {
+        int[] factorVariables = factor.getVariables();
+        int[] cardinalities = factor.getCardinalities();
+        int numberOfVariables = factorVariables.length;
+
+        // decide which variables remain.
+        boolean[] summed = new boolean[numberOfVariables];
+        int remaining = numberOfVariables;
+        for (int variable : variables) {
+            int index = factor.indexOf(variable);
+            if (index != -1 && !summed[index]) {
+                summed[index] = true;
+                remaining--;
+            }
+        }
+
+        int[] resultVariables = new int[remaining];
+        int[] resultCardinalities = new int[remaining];
+        for (int i = 0, r = 0; i < numberOfVariables; i++) {
+            if (!summed[i]) {
+                resultVariables[r] = factorVariables[i];
+                resultCardinalities[r] = cardinalities[i];
+                r++;
+            }
+        }
+        Factor result = new Factor(resultVariables, resultCardinalities);
+
+        // stride of each input variable in the result - zero for the summed out ones.
+        int[] resultStrides = new int[numberOfVariables];
+        for (int i = 0, r = 0; i < numberOfVariables; i++) {
+            if (!summed[i]) {
+                resultStrides[i] = result.getStrides()[r++];
+            }
+        }
+
+        double[] values = factor.getValues();
+        double[] resultValues = result.getValues();
+
+        // very large factors are summed out in parallel chunks.
+        if (values.length >= parallelThreshold) {
+            accumulateProduct(new double[][]{values}, new int[][]{factor.getStrides()}, resultStrides,
+                    cardinalities, resultValues);
+            return result;
+        }
+
+        // summing out the last or the first variables walks the values contiguously.
+        if (CONTIGUOUS_KERNELS && isSuffix(summed)) {
+            FactorKernels.sumBlocks(values, resultValues, values.length / resultValues.length);
+            return result;
+        }
+        if (CONTIGUOUS_KERNELS && isPrefix(summed)) {
+            FactorKernels.addStripes(values, resultValues);
+            return result;
+        }
+
+        int[] counter = new int[numberOfVariables];
+        int resultOffset = 0;
+
+        for (int i = 0; i < values.length; i++) {
+            resultValues[resultOffset] += values[i];
+
+            // advance the odometer, last variable fastest.
+            for (int d = numberOfVariables - 1; d >= 0; d--) {
+                counter[d]++;
+                resultOffset += resultStrides[d];
+                if (counter[d] < cardinalities[d]) {
+                    break;
+                }
+                resultOffset -= cardinalities[d] * resultStrides[d];
+                counter[d] = 0;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Multiply a set of factors together.
+     *
+     * @param factors the factors to multiply.
+     * @return a new factor over the union of the factors' variables.
+     */
+    public static Factor product(Factor... factors) {
+        return productSumOut(factors);
+    }
+
+    /**
+     * Multiply a set of factors together and sum out the given variables from the product,
+     * without ever building the full product. Every combination of the union of the
+     * variables is visited once, and the offset of every input factor and of the result
+     * is moved forward by its stride as the odometer advances.
+     *
+     * @param factors   the factors to multiply.
+     * @param variables the ids of the variables to sum out of the product.
+     * @return a new factor over the remaining variables.
+     */
+    public static Factor productSumOut(Factor[] factors, int... variables) {
+        int numberOfFactors = factors.length;
+
+        // two factors whose variables line up are multiplied contiguously, then summed out, unless
+        // the product is large enough to be computed in parallel.
+        if (CONTIGUOUS_KERNELS && numberOfFactors == 2
+                && Math.max(factors[0].size(), factors[1].size()) < parallelThreshold) {
+            Factor aligned = multiplyAligned(factors[0], factors[1]);
+            if (aligned == null) {
+                aligned = multiplyAligned(factors[1], factors[0]);
+            }
+            if (aligned != null) {
+                return variables.length == 0 ? aligned : sumOut(aligned, variables);
+            }
+        }
+
+        // collect the union of the variables, in order of appearance.
+        int total = 0;
+        for (Factor factor : factors) {
+            total += factor.getVariables().length;
+        }
+        int[] union = new int[total];
+        int[] unionCardinalities = new int[total];
+        int numberOfVariables = 0;
+        for (Factor factor : factors) {
+            for (int i = 0; i < factor.getVariables().length; i++) {
+                int variable = factor.getVariables()[i];
+                if (indexOf(union, numberOfVariables, variable) == -1) {
+                    union[numberOfVariables] = variable;
+                    unionCardinalities[numberOfVariables] = factor.getCardinalities()[i];
+                    numberOfVariables++;
+                }
+            }
+        }
+
+        // the result keeps every variable that is not summed out.
+        int[] resultVariables = new int[numberOfVariables];
+        int[] resultCardinalities = new int[numberOfVariables];
+        int remaining = 0;
+        for (int d = 0; d < numberOfVariables; d++) {
+            if (indexOf(variables, variables.length, union[d]) == -1) {
+                resultVariables[remaining] = union[d];
+                resultCardinalities[remaining] = unionCardinalities[d];
+                remaining++;
+            }
+        }
+        Factor result = new Factor(Arrays.copyOf(resultVariables, remaining),
+                Arrays.copyOf(resultCardinalities, remaining));
+
+        int[] cardinalities = Arrays.copyOf(unionCardinalities, numberOfVariables);
+
+        // strides of every union variable in each input and in the result (zero when absent).
+        int[][] strides = new int[numberOfFactors][numberOfVariables];
+        int[] resultStrides = new int[numberOfVariables];
+        for (int d = 0; d < numberOfVariables; d++) {
+            for (int f = 0; f < numberOfFactors; f++) {
+                strides[f][d] = factors[f].strideOf(union[d]);
+            }
+            resultStrides[d] = result.strideOf(union[d]);
+        }
+
+        double[][] values = new double[numberOfFactors][];
+        for (int f = 0; f < numberOfFactors; f++) {
+            values[f] = factors[f].getValues();
+        }
+        accumulateProduct(values, strides, resultStrides, cardinalities, result.getValues());
+        return result;
+    }
+
+    /**
+     * The inner loop of the product kernel, on strides that are already resolved. Every
+     * combination of the union variables is visited once, and the product of the inputs at
+     * that combination is added to the result. A stride of zero means the variable is not in
+     * that input (or has been summed out of the result). Above the parallel threshold the
+     * combinations are split into chunks computed on the common fork/join pool.
+     *
+     * @param values        the values of each input factor.
+     * @param strides       the stride of every union variable in each input.
+     * @param resultStrides the stride of every union variable in the result.
+     * @param cardinalities the cardinality of every union variable.
+     * @param resultValues  receives the sums of the products, expected to start at zero.
+     */
+    public static void accumulateProduct(double[][] values, int[][] strides, int[] resultStrides,
+                                         int[] cardinalities, double[] resultValues) {
+        int size = Factor.computeSize(cardinalities);
+        int chunks = ForkJoinPool.getCommonPoolParallelism() * 4;
+        if (size < parallelThreshold || chunks < 2) {
+            accumulateRange(values, strides, resultStrides, cardinalities, resultValues, 0, size);
+            return;
+        }
+
+        // walk the kept variables first and the summed out ones last, so every value of the
+        // result is the sum of one contiguous range of combinations.
+        int numberOfFactors = values.length;
+        int numberOfVariables = cardinalities.length;
+        int[] permutation = new int[numberOfVariables];
+        int position = 0;
+        for (int d = 0; d < numberOfVariables; d++) {
+            if (resultStrides[d] != 0) {
+                permutation[position++] = d;
+            }
+        }
+        for (int d = 0; d < numberOfVariables; d++) {
+            if (resultStrides[d] == 0) {
+                permutation[position++] = d;
+            }
+        }
+        int[] permutedCardinalities = new int[numberOfVariables];
+        int[] permutedResultStrides = new int[numberOfVariables];
+        int[][] permutedStrides = new int[numberOfFactors][numberOfVariables];
+        for (int d = 0; d < numberOfVariables; d++) {
+            permutedCardinalities[d] = cardinalities[permutation[d]];
+            permutedResultStrides[d] = resultStrides[permutation[d]];
+            for (int f = 0; f < numberOfFactors; f++) {
+                permutedStrides[f][d] = strides[f][permutation[d]];
+            }
+        }
+
+        int resultSize = resultValues.length;
+        int blockSize = size / resultSize; // combinations summed into each result value.
+        // waiting for the chunks can run tasks of other queries, which must not see the thread's arena.
+        FactorArena active = FactorArena.enter(null);
+        try {
+            accumulateChunks(values, permutedStrides, permutedResultStrides, permutedCardinalities,
+                    resultValues, size, blockSize, chunks);
+        } finally {
+            FactorArena.restore(active);
+        }
+    }
+
+    /**
+     * Compute the chunks of a parallel product on the common fork/join pool, with the
+     * variables already reordered so every value of the result sums contiguous combinations.
+     *
+     * @param values        the values of each input factor.
+     * @param strides       the stride of every reordered variable in each input.
+     * @param resultStrides the stride of every reordered variable in the result.
+     * @param cardinalities the cardinality of every reordered variable.
+     * @param resultValues  receives the sums of the products, expected to start at zero.
+     * @param size          the number of combinations.
+     * @param blockSize     the number of combinations summed into each result value.
+     * @param chunks        the number of chunks.
+     */
+    private static void accumulateChunks(double[][] values, int[][] strides, int[] resultStrides,
+                                         int[] cardinalities, double[] resultValues, int size,
+                                         int blockSize, int chunks) {
+        int resultSize = resultValues.length;
+        if (resultSize >= chunks) {
+            // every chunk owns a range of the result.
+            IntStream.range(0, chunks).parallel().forEach(c -> {
+                long first = (long) resultSize * c / chunks;
+                long last = (long) resultSize * (c + 1) / chunks;
+                accumulateRange(values, strides, resultStrides, cardinalities,
+                        resultValues, (int) (first * blockSize), (int) (last * blockSize));
+            });
+        } else {
+            // the result is too small to split, so every chunk sums into its own copy.
+            double[][] partials = new double[chunks][resultSize];
+            IntStream.range(0, chunks).parallel().forEach(c ->
+                    accumulateRange(values, strides, resultStrides, cardinalities,
+                            partials[c], (int) ((long) size * c / chunks), (int) ((long) size * (c + 1) / chunks)));
+            for (double[] partial : partials) {
+                for (int r = 0; r < resultSize; r++) {
+                    resultValues[r] += partial[r];
+                }
+            }
+        }
+    }
+
+    /**
+     * The product kernel over a batch of factors that share their variables. A batched factor
+     * stores the values of every batch row next to each other (offset * batchSize + row), and
+     * a factor that is the same for every row is stored once. Every combination is visited
+     * once, and the product over the batch is built with unit-stride loops over the rows.
+     *
+     * @param values        the values of each input factor.
+     * @param batched       whether each input holds one value per batch row.
+     * @param strides       the stride of every union variable in each input.
+     * @param resultStrides the stride of every union variable in the result.
+     * @param cardinalities the cardinality of every union variable.
+     * @param resultValues  receives the sums of the products for every row, expected to start at zero.
+     * @param batchSize     the number of batch rows.
+     */
+    public static void accumulateProductBatch(double[][] values, boolean[] batched, int[][] strides,
+                                              int[] resultStrides, int[] cardinalities,
+                                              double[] resultValues, int batchSize) {
+        int numberOfFactors = values.length;
+        int numberOfVariables = cardinalities.length;
+        int size = Factor.computeSize(cardinalities);
+        int[] offsets = new int[numberOfFactors];
+        int[] counter = new int[numberOfVariables];
+        int resultOffset = 0;
+        double[] rows = new double[batchSize];
+
+        for (int i = 0; i < size; i++) {
+            // the inputs shared by every row give a single factor for the whole batch.
+            double shared = 1.0;
+            for (int f = 0; f < numberOfFactors; f++) {
+                if (!batched[f]) {
+                    shared *= values[f][offsets[f]];
+                }
+            }
+            if (shared != 0.0) {
+                Arrays.fill(rows, shared);
+                for (int f = 0; f < numberOfFactors; f++) {
+                    if (batched[f]) {
+                        FactorKernels.multiplyInto(rows, values[f], offsets[f] * batchSize);
+                    }
+                }
+                FactorKernels.addInto(resultValues, resultOffset * batchSize, rows);
+            }
+
+            // advance the odometer, last variable fastest.
+            for (int d = numberOfVariables - 1; d >= 0; d--) {
+                counter[d]++;
+                resultOffset += resultStrides[d];
+                for (int f = 0; f < numberOfFactors; f++) {
+                    offsets[f] += strides[f][d];
+                }
+                if (counter[d] < cardinalities[d]) {
+                    break;
+                }
+                resultOffset -= cardinalities[d] * resultStrides[d];
+                for (int f = 0; f < numberOfFactors; f++) {
+                    offsets[f] -= cardinalities[d] * strides[f][d];
+                }
+                counter[d] = 0;
+            }
+        }
+    }
+
+    /**
+     * Run the product kernel over a range of the combinations of the union variables.
+     *
+     * @param values        the values of each input factor.
+     * @param strides       the stride of every union variable in each input.
+     * @param resultStrides the stride of every union variable in the result.
+     * @param cardinalities the cardinality of every union variable.
+     * @param resultValues  receives the sums of the products.
+     * @param start         the first combination, in odometer order.
+     * @param end           the combination after the last one.
+     */
+    private static void accumulateRange(double[][] values, int[][] strides, int[] resultStrides,
+                                        int[] cardinalities, double[] resultValues, int start, int end) {
+        int numberOfFactors = values.length;
+        int numberOfVariables = cardinalities.length;
+        int[] offsets = new int[numberOfFactors];
+        int[] counter = new int[numberOfVariables];
+        int resultOffset = 0;
+
+        // set the odometer to the first combination of the range.
+        int rest = start;
+        for (int d = numberOfVariables - 1; d >= 0; d--) {
+            counter[d] = rest % cardinalities[d];
+            rest /= cardinalities[d];
+            resultOffset += counter[d] * resultStrides[d];
+            for (int f = 0; f < numberOfFactors; f++) {
+                offsets[f] += counter[d] * strides[f][d];
+            }
+        }
+
+        for (int i = start; i < end; i++) {
+            double value = 1.0;
+            for (int f = 0; f < numberOfFactors; f++) {
+                value *= values[f][offsets[f]];
+            }
+            resultValues[resultOffset] += value;
+
+            // advance the odometer, last variable fastest.
+            for (int d = numberOfVariables - 1; d >= 0; d--) {
+                counter[d]++;
+                resultOffset += resultStrides[d];
+                for (int f = 0; f < numberOfFactors; f++) {
+                    offsets[f] += strides[f][d];
+                }
+                if (counter[d] < cardinalities[d]) {
+                    break;
+                }
+                resultOffset -= cardinalities[d] * resultStrides[d];
+                for (int f = 0; f < numberOfFactors; f++) {
+                    offsets[f] -= cardinalities[d] * strides[f][d];
+                }
+                counter[d] = 0;
+            }
+        }
+    }
+
+    /**
+     * Sum out a set of variables from a sparse factor, visiting only its non-zero values.
+     *
+     * @param factor    the sparse factor to marginalise.
+     * @param variables the ids of the variables to sum out. Ids not in the factor are ignored.
+     * @return a new dense factor over the remaining variables.
+     */
+    public static Factor sumOut(SparseFactor factor, int... variables) {
+        int[] factorVariables = factor.getVariables();
+        int[] cardinalities = factor.getCardinalities();
+        int[] strides = factor.getStrides();
+
+        int[] resultVariables = new int[factorVariables.length];
+        int[] resultCardinalities = new int[factorVariables.length];
+        int remaining = 0;
+        for (int i = 0; i < factorVariables.length; i++) {
+            if (indexOf(variables, variables.length, factorVariables[i]) == -1) {
+                resultVariables[remaining] = factorVariables[i];
+                resultCardinalities[remaining] = cardinalities[i];
+                remaining++;
+            }
+        }
+        Factor result = new Factor(Arrays.copyOf(resultVariables, remaining), Arrays.copyOf(resultCardinalities, remaining));
+
+        int[] resultStrides = new int[factorVariables.length];
+        for (int i = 0; i < factorVariables.length; i++) {
+            resultStrides[i] = result.strideOf(factorVariables[i]);
+        }
+
+        int[] offsets = factor.getOffsets();
+        double[] values = factor.getValues();
+        double[] resultValues = result.getValues();
+        for (int n = 0; n < offsets.length; n++) {
+            // decode the value of every variable and move it to the result's layout.
+            int resultOffset = 0;
+            for (int i = 0; i < factorVariables.length; i++) {
+                resultOffset += (offsets[n] / strides[i]) % cardinalities[i] * resultStrides[i];
+            }
+            resultValues[resultOffset] += values[n];
+        }
+        return result;
+    }
+
+    /**
+     * Multiply a sparse factor with a set of dense factors and sum out the given variables,
+     * driving the product from the non-zero values of the sparse factor. For every non-zero
+     * value, only the variables the sparse factor does not contain are enumerated, and a
+     * combination is dropped as soon as one of the dense factors is zero for it.
+     *
+     * @param driver    the sparse factor driving the product.
+     * @param others    the dense factors to multiply with.
+     * @param variables the ids of the variables to sum out of the product.
+     * @return a new dense factor over the remaining variables.
+     */
+    public static Factor productSumOut(SparseFactor driver, Factor[] others, int... variables) {
+        int numberOfOthers = others.length;
+        int[] driverVariables = driver.getVariables();
+        int[] driverCardinalities = driver.getCardinalities();
+        int[] driverStrides = driver.getStrides();
+
+        // the variables of the other factors that the driver does not contain.
+        int total = 0;
+        for (Factor factor : others) {
+            total += factor.getVariables().length;
+        }
+        int[] extra = new int[total];
+        int[] extraCardinalities = new int[total];
+        int numberOfExtra = 0;
+        for (Factor factor : others) {
+            for (int i = 0; i < factor.getVariables().length; i++) {
+                int variable = factor.getVariables()[i];
+                if (indexOf(driverVariables, driverVariables.length, variable) == -1
+                        && indexOf(extra, numberOfExtra, variable) == -1) {
+                    extra[numberOfExtra] = variable;
+                    extraCardinalities[numberOfExtra] = factor.getCardinalities()[i];
+                    numberOfExtra++;
+                }
+            }
+        }
+
+        // the result keeps the driver's variables followed by the extra ones, except the summed out ones.
+        int[] resultVariables = new int[driverVariables.length + numberOfExtra];
+        int[] resultCardinalities = new int[driverVariables.length + numberOfExtra];
+        int remaining = 0;
+        for (int i = 0; i < driverVariables.length + numberOfExtra; i++) {
+            int variable = i < driverVariables.length ? driverVariables[i] : extra[i - driverVariables.length];
+            if (indexOf(variables, variables.length, variable) == -1) {
+                resultVariables[remaining] = variable;
+                resultCardinalities[remaining] = i < driverVariables.length ? driverCardinalities[i] : extraCardinalities[i - driverVariables.length];
+                remaining++;
+            }
+        }
+        Factor result = new Factor(Arrays.copyOf(resultVariables, remaining), Arrays.copyOf(resultCardinalities, remaining));
+
+        // strides of the driver's and the extra variables in the other factors and in the result.
+        int[][] driverStridesInOthers = new int[numberOfOthers][driverVariables.length];
+        int[][] extraStrides = new int[numberOfOthers][numberOfExtra];
+        int[] driverStridesInResult = new int[driverVariables.length];
+        int[] extraStridesInResult = new int[numberOfExtra];
+        for (int f = 0; f < numberOfOthers; f++) {
+            for (int i = 0; i < driverVariables.length; i++) {
+                driverStridesInOthers[f][i] = others[f].strideOf(driverVariables[i]);
+            }
+            for (int d = 0; d < numberOfExtra; d++) {
+                extraStrides[f][d] = others[f].strideOf(extra[d]);
+            }
+        }
+        for (int i = 0; i < driverVariables.length; i++) {
+            driverStridesInResult[i] = result.strideOf(driverVariables[i]);
+        }
+        for (int d = 0; d < numberOfExtra; d++) {
+            extraStridesInResult[d] = result.strideOf(extra[d]);
+        }
+
+        double[][] values = new double[numberOfOthers][];
+        for (int f = 0; f < numberOfOthers; f++) {
+            values[f] = others[f].getValues();
+        }
+        int extraSize = Factor.computeSize(Arrays.copyOf(extraCardinalities, numberOfExtra));
+        int[] offsets = driver.getOffsets();
+        double[] driverValues = driver.getValues();
+        double[] resultValues = result.getValues();
+        int[] baseOffsets = new int[numberOfOthers];
+        int[] otherOffsets = new int[numberOfOthers];
+        int[] counter = new int[numberOfExtra];
+
+        for (int n = 0; n < offsets.length; n++) {
+            // position of the driver's values in every other factor and in the result.
+            int baseResultOffset = 0;
+            Arrays.fill(baseOffsets, 0);
+            for (int i = 0; i < driverVariables.length; i++) {
+                int value = (offsets[n] / driverStrides[i]) % driverCardinalities[i];
+                baseResultOffset += value * driverStridesInResult[i];
+                for (int f = 0; f < numberOfOthers; f++) {
+                    baseOffsets[f] += value * driverStridesInOthers[f][i];
+                }
+            }
+            System.arraycopy(baseOffsets, 0, otherOffsets, 0, numberOfOthers);
+            int resultOffset = baseResultOffset;
+
+            for (int e = 0; e < extraSize; e++) {
+                double value = driverValues[n];
+                for (int f = 0; f < numberOfOthers && value != 0.0; f++) {
+                    value *= values[f][otherOffsets[f]];
+                }
+                if (value != 0.0) {
+                    resultValues[resultOffset] += value;
+                }
+
+                // advance the odometer over the extra variables, last variable fastest.
+                for (int d = numberOfExtra - 1; d >= 0; d--) {
+                    counter[d]++;
+                    resultOffset += extraStridesInResult[d];
+                    for (int f = 0; f < numberOfOthers; f++) {
+                        otherOffsets[f] += extraStrides[f][d];
+                    }
+                    if (counter[d] < extraCardinalities[d]) {
+                        break;
+                    }
+                    resultOffset -= extraCardinalities[d] * extraStridesInResult[d];
+                    for (int f = 0; f < numberOfOthers; f++) {
+                        otherOffsets[f] -= extraCardinalities[d] * extraStrides[f][d];
+                    }
+                    counter[d] = 0;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Max out a variable from a factor in a single pass, recording for every value of the
+     * result which value of the variable gave the maximum. Ties keep the first value.
+     *
+     * @param factor   the factor to maximise.
+     * @param variable the id of the variable to max out.
+     * @param argmax   receives the maximising value of the variable for every result offset,
+     *                 the same length as the result.
+     * @return a new factor over the remaining variables.
+     */
+    public static Factor maxOut(Factor factor, int variable, int[] argmax) {
+        int[] factorVariables = factor.getVariables();
+        int[] cardinalities = factor.getCardinalities();
+        int numberOfVariables = factorVariables.length;
+        int maxed = factor.indexOf(variable);
+
+        int[] resultVariables = new int[numberOfVariables - 1];
+        int[] resultCardinalities = new int[numberOfVariables - 1];
+        for (int i = 0, r = 0; i < numberOfVariables; i++) {
+            if (i != maxed) {
+                resultVariables[r] = factorVariables[i];
+                resultCardinalities[r] = cardinalities[i];
+                r++;
+            }
+        }
+        Factor result = new Factor(resultVariables, resultCardinalities);
+
+        // stride of each input variable in the result - zero for the maxed out one.
+        int[] resultStrides = new int[numberOfVariables];
+        for (int i = 0, r = 0; i < numberOfVariables; i++) {
+            if (i != maxed) {
+                resultStrides[i] = result.getStrides()[r++];
+            }
+        }
+
+        double[] values = factor.getValues();
+        double[] resultValues = result.getValues();
+        Arrays.fill(resultValues, Double.NEGATIVE_INFINITY);
+        int[] counter = new int[numberOfVariables];
+        int resultOffset = 0;
+
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] > resultValues[resultOffset]) {
+                resultValues[resultOffset] = values[i];
+                argmax[resultOffset] = counter[maxed];
+            }
+
+            // advance the odometer, last variable fastest.
+            for (int d = numberOfVariables - 1; d >= 0; d--) {
+                counter[d]++;
+                resultOffset += resultStrides[d];
+                if (counter[d] < cardinalities[d]) {
+                    break;
+                }
+                resultOffset -= cardinalities[d] * resultStrides[d];
+                counter[d] = 0;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Slice a factor down to the observed values of some of its variables. The observed
+     * variables are removed from the result, so every observation divides the size of the
+     * factor by the cardinality of the observed variable.
+     *
+     * @param factor    the factor to slice.
+     * @param variables the ids of the observed variables. Ids not in the factor are ignored.
+     * @param observed  the observed value of each variable.
+     * @return a new factor over the unobserved variables.
+     */
+    public static Factor reduce(Factor factor, int[] variables, int[] observed) {
+        int[] factorVariables = factor.getVariables();
+        int[] cardinalities = factor.getCardinalities();
+        int[] strides = factor.getStrides();
+
+        // the offset of the observed values, and which variables remain.
+        boolean[] sliced = new boolean[factorVariables.length];
+        int remaining = factorVariables.length;
+        int base = 0;
+        for (int e = 0; e < variables.length; e++) {
+            int index = factor.indexOf(variables[e]);
+            if (index != -1 && !sliced[index]) {
+                sliced[index] = true;
+                remaining--;
+                base += observed[e] * strides[index];
+            }
+        }
+
+        int[] resultVariables = new int[remaining];
+        int[] resultCardinalities = new int[remaining];
+        int[] sourceStrides = new int[remaining];
+        for (int i = 0, r = 0; i < factorVariables.length; i++) {
+            if (!sliced[i]) {
+                resultVariables[r] = factorVariables[i];
+                resultCardinalities[r] = cardinalities[i];
+                sourceStrides[r] = strides[i];
+                r++;
+            }
+        }
+        Factor result = new Factor(resultVariables, resultCardinalities);
+
+        double[] values = factor.getValues();
+        double[] resultValues = result.getValues();
+
+        // observing the first variables leaves a single contiguous block.
+        if (CONTIGUOUS_KERNELS && isPrefix(sliced)) {
+            System.arraycopy(values, base, resultValues, 0, resultValues.length);
+            return result;
+        }
+
+        int[] counter = new int[remaining];
+        int offset = base;
+
+        for (int i = 0; i < resultValues.length; i++) {
+            resultValues[i] = values[offset];
+
+            // advance the odometer, last variable fastest.
+            for (int d = remaining - 1; d >= 0; d--) {
+                counter[d]++;
+                offset += sourceStrides[d];
+                if (counter[d] < resultCardinalities[d]) {
+                    break;
+                }
+                offset -= resultCardinalities[d] * sourceStrides[d];
+                counter[d] = 0;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Normalise values in place so that they sum up to one.
+     *
+     * @param values the values to normalise.
+     */
+    public static void normalize(double[] values) {
+        if (CONTIGUOUS_KERNELS) {
+            FactorKernels.divide(values, FactorKernels.sum(values));
+            return;
+        }
+        double sum = 0.0;
+        for (double value : values) {
+            sum += value;
+        }
+        for (int i = 0; i < values.length; i++) {
+            values[i] /= sum;
+        }
+    }
+
+    /**
+     * Multiply two factors contiguously if the variables of the second are the last variables
+     * of the first, in the same order.
+     *
+     * @param larger  the factor whose layout the product keeps.
+     * @param smaller the factor repeated over the larger one.
+     * @return the product, or null if the variables do not line up.
+     */
+    private static Factor multiplyAligned(Factor larger, Factor smaller) {
+        int[] largerVariables = larger.getVariables();
+        int[] smallerVariables = smaller.getVariables();
+        int shift = largerVariables.length - smallerVariables.length;
+        if (shift < 0) {
+            return null;
+        }
+        for (int i = 0; i < smallerVariables.length; i++) {
+            if (largerVariables[shift + i] != smallerVariables[i]) {
+                return null;
+            }
+        }
+        Factor product = new Factor(largerVariables, larger.getCardinalities());
+        FactorKernels.multiplyBroadcast(larger.getValues(), smaller.getValues(), product.getValues());
+        return product;
+    }
+
+    /**
+     * Check whether the flagged positions are exactly the last positions.
+     *
+     * @param flags one flag for each variable.
+     * @return true if no flagged position comes before an unflagged one.
+     */
+    private static boolean isSuffix(boolean[] flags) {
+        for (int i = 1; i < flags.length; i++) {
+            if (flags[i - 1] && !flags[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Check whether the flagged positions are exactly the first positions.
+     *
+     * @param flags one flag for each variable.
+     * @return true if no unflagged position comes before a flagged one.
+     */
+    private static boolean isPrefix(boolean[] flags) {
+        for (int i = 1; i < flags.length; i++) {
+            if (!flags[i - 1] && flags[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Find the position of a value in the first elements of an array.
+     *
+     * @param array  the array to search.
+     * @param length the number of elements to search.
+     * @param value  the value to look for.
+     * @return the position of the value, or -1 if it is not found.
+     */
+    private static int indexOf(int[] array, int length, int value) {
+        for (int i = 0; i < length; i++) {
+            if (array[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,44 @@
+/**
+ * Read access to the values of a factor, whatever the storage behind it. Used by the
+ * kernels that have to mix dense, sparse and off-heap factors.
+ *
+ * @author: 210017984
+ */
+public interface FactorTable {
+
+    /**
+     * Get the ids of the variables in the factor.
+     *
+     * @return the variable ids.
+     */
+    int[] getVariables();
+
+    /**
+     * Get the cardinality of each variable in the factor.
+     *
+     * @return the cardinalities.
+     */
+    int[] getCardinalities();
+
+    /**
+     * Get the stride of each variable in the dense layout of the factor.
+     *
+     * @return the strides.
+     */
+    int[] getStrides();
+
+    /**
+     * Get the number of combinations in the factor.
+     *
+     * @return the size of the factor.
+     */
+    int size();
+
+    /**
+     * Get the value stored at a given offset of the dense layout.
+     *
+     * @param offset the offset of the combination.
+     * @return the value of the combination.
+     */
+    double getValue(int offset);
+}
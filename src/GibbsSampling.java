@@ -28,7 +28,7 @@ public class GibbsSampling {
      * @return the estimated probability.
      */
     public double gibbsAsk(int samples, String value) {
-        // a vector of counts for each value of the queried variable - since binary and only one queried variable, the counts size are equal to 2.
+        // the values sampled for each non-evidence variable, stored as outcome indexes.
         HashMap<String, ArrayList<Integer>> allValuesAssigned = new HashMap<>();
         ArrayList<Node> nonEvidences = getNonEvidences();
         HashMap<String, Integer> nonEvidenceAssignment = assignNonEvidence(allValuesAssigned, nonEvidences); // initialising some random values by random guess.
@@ -43,12 +43,22 @@ public class GibbsSampling {
 
                 double probConds = fullCPT.getCPTProbability(getTruthValuesForCondition(nonEvidenceNode, fullCPT,nonEvidenceAssignment));
 
-                double postTrue = nonEvidenceNode.getCpt().getCorrespondingNodeTruthValue(1) * probConds;
-                double postFalse = nonEvidenceNode.getCpt().getCorrespondingNodeTruthValue(0) * probConds;
+                // posterior of every value of the node.
+                double[] marginal = nonEvidenceNode.getCpt().getCorrespondingNodeMarginal(); // cached in the CPT.
+                double[] posteriors = new double[marginal.length];
+                for (int v = 0; v < posteriors.length; v++) {
+                    posteriors[v] = marginal[v] * probConds;
+                }
 
-                double[] normalizedProb = normalizedProbs(postTrue, postFalse);
+                double[] normalizedProb = normalizedProbs(posteriors);
                 double prediction = Math.random();
-                int sampleValue = prediction <= normalizedProb[0] ? 1 : 0;
+                // pick the value whose cumulative probability first reaches the prediction.
+                int sampleValue = 0;
+                double cumulative = normalizedProb[0];
+                while (prediction > cumulative && sampleValue < normalizedProb.length - 1) {
+                    sampleValue++;
+                    cumulative += normalizedProb[sampleValue];
+                }
                 nonEvidenceAssignment.put(nonEvidenceNode.getLabel(), sampleValue);
                 ArrayList<Integer> valuesSoFar = allValuesAssigned.get(nonEvidenceNode.getLabel());
                 // add new value sampled.
@@ -82,12 +92,10 @@ public class GibbsSampling {
 
     public HashMap<String, Integer> assignNonEvidence(HashMap<String, ArrayList<Integer>> valuesAssignedForEach, ArrayList<Node> nonEvidences) {
         HashMap<String, Integer> nonEvidenceAssignment = new HashMap<>();
-        Integer[] possibleValues={0, 1};
         Random r=new Random();
-        // Assign a random value (out of the true possible) to each non-evidence variable.
+        // Assign a random value (out of the possible outcomes) to each non-evidence variable.
         for (Node nonEvidence : nonEvidences) {
-            int randomNumber = r.nextInt(possibleValues.length);
-            int randomValue = possibleValues[randomNumber];
+            int randomValue = r.nextInt(nonEvidence.getCardinality());
             nonEvidenceAssignment.put(nonEvidence.getLabel(), randomValue);
 
             // New ArrayList is created to store the value - happens here because its the first assignment.
@@ -120,7 +128,7 @@ public class GibbsSampling {
         return factors;
     }
 
-    public ArrayList<Integer> getTruthValuesForCondition(Node currentEvidence, CPT fullCPT, HashMap<String, Integer> nonEvidenceAssignment) {
+    public int[] getTruthValuesForCondition(Node currentEvidence, CPT fullCPT, HashMap<String, Integer> nonEvidenceAssignment) {
         // Get the labels in the correct order.
         ArrayList<String> conditionsUsed = (ArrayList<String>) bn.getNodes().stream().map(e -> e.getLabel()).collect(toList());
         conditionsUsed.remove(currentEvidence.getLabel());
@@ -129,20 +137,21 @@ public class GibbsSampling {
        return assignTruth(conditionsUsed, nonEvidenceAssignment);
     }
 
-    public ArrayList<Integer> assignTruth(ArrayList<String> conditionsUsed, HashMap<String, Integer> nonEvidenceAssignment) {
-        ArrayList<Integer> truthValues = new ArrayList<>();
+    public int[] assignTruth(ArrayList<String> conditionsUsed, HashMap<String, Integer> nonEvidenceAssignment) {
+        int[] truthValues = new int[conditionsUsed.size()];
+        int position = 0;
 
-        // Add all the binary values from the nonEvidence assignment map.
+        // Add all the value indexes from the nonEvidence assignment map.
         for (String condition: conditionsUsed) {
-            if (nonEvidenceAssignment.keySet().contains(condition)) {
-                truthValues.add(nonEvidenceAssignment.get(condition));
+            if (nonEvidenceAssignment.containsKey(condition)) {
+                truthValues[position++] = nonEvidenceAssignment.get(condition);
             }
             // add all the values in the evidences array.
             else {
                 for (String[] evidence : evidences) {
                     if (evidence[0].equalsIgnoreCase(condition)) {
-                        int truthLooking = (evidence[1].equalsIgnoreCase("T")) ? 1 : 0;
-                        truthValues.add(truthLooking);
+                        int truthLooking = bn.getNode(evidence[0]).getOutcomeIndex(evidence[1]);
+                        truthValues[position++] = truthLooking;
                     }
                 }
             }
@@ -150,16 +159,20 @@ public class GibbsSampling {
         return truthValues;
     }
 
-    public double[] normalizedProbs(double probTrue, double probFalse) {
-        double[] normalized = new double[2];
-        normalized[0] = probTrue / (probTrue + probFalse); // normalized true.
-        normalized[1] = probFalse / (probTrue + probFalse); // normalized false.
-
+    public double[] normalizedProbs(double[] probs) {
+        double sum = 0.0;
+        for (double prob : probs) {
+            sum += prob;
+        }
+        double[] normalized = new double[probs.length];
+        for (int i = 0; i < probs.length; i++) {
+            normalized[i] = probs[i] / sum;
+        }
         return normalized;
     }
 
     public int getNumberOfOccurences(HashMap<String, ArrayList<Integer>> allValuesAssigned, String queried, String value) {
-        int truthLooking = (value.equalsIgnoreCase("T")) ? 1 : 0;
+        int truthLooking = bn.getNode(queried).getOutcomeIndex(value);
         int occurrences = Collections.frequency(allValuesAssigned.get(queried), truthLooking);
         return occurrences;
     }
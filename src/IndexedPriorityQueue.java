@@ -0,0 +1,175 @@
+import java.util.Arrays;
+
+/**
+ * A binary min-heap of integer keys (0 to capacity - 1) with a priority each, which keeps the
+ * position of every key so a priority can be changed in O(log n) instead of rebuilding the
+ * queue. Equal priorities are broken by the smaller key, so the order is deterministic.
+ *
+ * @author: 210017984
+ */
+public class IndexedPriorityQueue {
+
+    // initialise variables.
+    private int[] heap; // the keys, in heap order.
+    private int[] positions; // the position of every key in the heap, -1 when absent.
+    private long[] priorities; // the priority of every key.
+    private int size = 0;
+
+    /**
+     * Create an empty queue.
+     *
+     * @param capacity the number of keys, keys range from 0 to capacity - 1.
+     */
+    public IndexedPriorityQueue(int capacity) {
+        this.heap = new int[capacity];
+        this.positions = new int[capacity];
+        this.priorities = new long[capacity];
+        Arrays.fill(positions, -1);
+    }
+
+    /**
+     * Add a key, or change its priority if it is already in the queue.
+     *
+     * @param key      the key.
+     * @param priority the priority of the key, smaller first.
+     */
+    public void put(int key, long priority) {
+        if (positions[key] == -1) {
+            heap[size] = key;
+            positions[key] = size;
+            priorities[key] = priority;
+            size++;
+            siftUp(size - 1);
+            return;
+        }
+        long old = priorities[key];
+        priorities[key] = priority;
+        if (priority < old) {
+            siftUp(positions[key]);
+        } else {
+            siftDown(positions[key]);
+        }
+    }
+
+    /**
+     * Remove and return the key with the smallest priority.
+     *
+     * @return the key.
+     */
+    public int poll() {
+        int top = heap[0];
+        size--;
+        swap(0, size);
+        positions[top] = -1;
+        if (size > 0) {
+            siftDown(0);
+        }
+        return top;
+    }
+
+    /**
+     * Check whether a key is in the queue.
+     *
+     * @param key the key.
+     * @return true if the key is in the queue.
+     */
+    public boolean contains(int key) {
+        return positions[key] != -1;
+    }
+
+    /**
+     * Get the priority of a key.
+     *
+     * @param key the key.
+     * @return the priority it was last given.
+     */
+    public long getPriority(int key) {
+        return priorities[key];
+    }
+
+    /**
+     * Check whether the queue is empty.
+     *
+     * @return true if there are no keys left.
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Get the number of keys in the queue.
+     *
+     * @return the number of keys.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Move a key up the heap until its parent comes before it.
+     *
+     * @param position the position of the key.
+     */
+    private void siftUp(int position) {
+        while (position > 0) {
+            int parent = (position - 1) / 2;
+            if (!before(heap[position], heap[parent])) {
+                return;
+            }
+            swap(position, parent);
+            position = parent;
+        }
+    }
+
+    /**
+     * Move a key down the heap until it comes before its children.
+     *
+     * @param position the position of the key.
+     */
+    private void siftDown(int position) {
+        while (true) {
+            int smallest = position;
+            int left = 2 * position + 1;
+            int right = left + 1;
+            if (left < size && before(heap[left], heap[smallest])) {
+                smallest = left;
+            }
+            if (right < size && before(heap[right], heap[smallest])) {
+                smallest = right;
+            }
+            if (smallest == position) {
+                return;
+            }
+            swap(position, smallest);
+            position = smallest;
+        }
+    }
+
+    /**
+     * Check whether a key comes before another: smaller priority, then smaller key.
+     *
+     * @param first  the first key.
+     * @param second the second key.
+     * @return true if the first key comes first.
+     */
+    private boolean before(int first, int second) {
+        if (priorities[first] != priorities[second]) {
+            return priorities[first] < priorities[second];
+        }
+        return first < second;
+    }
+
+    /**
+     * Swap two positions of the heap.
+     *
+     * @param first  the first position.
+     * @param second the second position.
+     */
+    private void swap(int first, int second) {
+        int key = heap[first];
+        heap[first] = heap[second];
+        heap[second] = key;
+        positions[heap[first]] = first;
+        positions[heap[second]] = second;
+    }
+}
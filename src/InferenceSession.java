@@ -0,0 +1,110 @@
+import java.util.ArrayList;
+
+/**
+ * A long-lived inference session over a Bayesian network, for evidence that arrives one
+ * observation at a time. The session keeps a calibrated junction tree between updates;
+ * adding, changing or retracting an observation only marks the messages that depend on
+ * that variable as out of date, and the next query recomputes just those messages.
+ *
+ * @author: 210017984
+ */
+public class InferenceSession {
+
+    // initialise variables.
+    private BayesianNetwork bn;
+    private JunctionTree tree;
+
+    /**
+     * Start a new session with no evidence.
+     *
+     * @param bn the Bayesian network.
+     */
+    public InferenceSession(BayesianNetwork bn) {
+        this.bn = bn;
+        this.tree = new JunctionTree(bn);
+    }
+
+    /**
+     * Add the observation of a variable that is not observed yet.
+     *
+     * @param label the label of the variable.
+     * @param value the observed value.
+     */
+    public void addEvidence(String label, String value) {
+        if (tree.getObservedValue(label) != null) {
+            throw new IllegalArgumentException("Variable " + label + " is already observed, change its evidence instead.");
+        }
+        tree.observe(label, value);
+    }
+
+    /**
+     * Change the observed value of a variable.
+     *
+     * @param label the label of the variable.
+     * @param value the new observed value.
+     */
+    public void changeEvidence(String label, String value) {
+        if (tree.getObservedValue(label) == null) {
+            throw new IllegalArgumentException("Variable " + label + " is not observed, add its evidence instead.");
+        }
+        tree.observe(label, value);
+    }
+
+    /**
+     * Retract the observation of a variable.
+     *
+     * @param label the label of the variable.
+     */
+    public void retractEvidence(String label) {
+        if (tree.getObservedValue(label) == null) {
+            throw new IllegalArgumentException("Variable " + label + " is not observed.");
+        }
+        tree.retract(label);
+    }
+
+    /**
+     * Get the current evidence.
+     *
+     * @return the evidence, as pairs of variable label and observed value.
+     */
+    public ArrayList<String[]> getEvidence() {
+        ArrayList<String[]> evidence = new ArrayList<>();
+        for (Node node : bn.getNodes()) {
+            String value = tree.getObservedValue(node.getLabel());
+            if (value != null) {
+                evidence.add(new String[]{node.getLabel(), value});
+            }
+        }
+        return evidence;
+    }
+
+    /**
+     * Get the marginal distribution of a variable given the current evidence.
+     *
+     * @param label the label of the variable.
+     * @return the probability of each of the variable's outcomes.
+     */
+    public double[] getMarginal(String label) {
+        return tree.getMarginal(label);
+    }
+
+    /**
+     * Get the probability of a value of a variable given the current evidence.
+     *
+     * @param label the label of the variable.
+     * @param value the value of the variable.
+     * @return the posterior probability of the value.
+     */
+    public double getProbability(String label, String value) {
+        return tree.getProbability(label, value);
+    }
+
+    /**
+     * Get the number of junction tree messages computed since the session started.
+     *
+     * @return the number of messages computed.
+     */
+    public int getMessagesComputed() {
+        return tree.getMessagesComputed();
+    }
+}
@@ -0,0 +1,552 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * A junction tree (clique tree) inference engine. The moral graph of the network is
+ * triangulated along an elimination order, the maximal cliques are joined into a tree, and
+ * Shafer-Shenoy message passing calibrates the tree for the current evidence: one pass
+ * from the leaves to the root and one back. After calibration the marginal of every
+ * variable given the evidence is read from the tree without running another elimination.
+ * Messages are kept between queries, so observing or retracting a variable only recomputes
+ * the messages that depend on the clique holding it.
+ *
+ * @author: 210017984
+ */
+public class JunctionTree {
+
+    // initialise variables.
+    private BayesianNetwork bn;
+    private ArrayList<int[]> cliques = new ArrayList<>(); // the variable ids of every clique.
+    private ArrayList<ArrayList<Node>> assigned = new ArrayList<>(); // the CPTs multiplied into each clique.
+    private int[] parent; // the parent of every clique in the tree, -1 for the root.
+    private int[] visitOrder; // the cliques from the root down, parents before children.
+    private int[][] separators; // the variables shared by every clique and its parent.
+    private ArrayList<ArrayList<Integer>> children = new ArrayList<>(); // the children of every clique.
+    private int[] home; // the smallest clique holding each variable, where its evidence is entered.
+    private int[] observed; // the observed outcome of each variable, -1 when unobserved.
+    private Factor[] basePotentials; // the product of each clique's CPTs, without evidence.
+    private Factor[] potentials; // the potentials with the evidence entered, null when out of date.
+    private Factor[] upward; // the message from each clique to its parent, null when out of date.
+    private Factor[] downward; // the message from each clique's parent to it, null when out of date.
+    private Factor[] beliefs; // the calibrated belief of each clique, null when out of date.
+    private double[][] marginals; // the marginal of each variable, null when out of date.
+    private int messagesComputed = 0;
+    private long networkVersion; // the network version the potentials were built at.
+
+    /**
+     * Build a junction tree, triangulating along an order found by maximum cardinality search.
+     *
+     * @param bn the Bayesian network.
+     */
+    public JunctionTree(BayesianNetwork bn) {
+        this(bn, defaultOrder(bn));
+    }
+
+    /**
+     * Build a junction tree, triangulating along the given elimination order. Variables the
+     * order does not mention are eliminated last.
+     *
+     * @param bn    the Bayesian network.
+     * @param order the elimination order used to triangulate the moral graph.
+     */
+    public JunctionTree(BayesianNetwork bn, String[] order) {
+        this.bn = bn;
+        int numberOfNodes = bn.getNodes().size();
+
+        // start from the moral graph: every node linked to its parents, and the parents of a node to each other.
+        MoralGraph moralGraph = bn.getMoralGraph();
+        ArrayList<BitSet> adjacent = new ArrayList<>();
+        for (int id = 0; id < numberOfNodes; id++) {
+            adjacent.add(moralGraph.getNeighbourSet(id));
+        }
+
+        // eliminate along the order, adding fill-in edges; each elimination forms a clique.
+        ArrayList<Integer> elimination = new ArrayList<>();
+        boolean[] ordered = new boolean[numberOfNodes];
+        for (String label : order) {
+            int id = bn.getNode(label).getId();
+            if (!ordered[id]) {
+                ordered[id] = true;
+                elimination.add(id);
+            }
+        }
+        for (Node node : bn.getNodes()) {
+            if (!ordered[node.getId()]) {
+                elimination.add(node.getId());
+            }
+        }
+        for (int variable : elimination) {
+            BitSet neighbours = adjacent.get(variable);
+            int[] clique = new int[neighbours.cardinality() + 1];
+            clique[0] = variable;
+            int size = 1;
+            for (int other = neighbours.nextSetBit(0); other >= 0; other = neighbours.nextSetBit(other + 1)) {
+                clique[size++] = other;
+                adjacent.get(other).or(neighbours);
+                adjacent.get(other).clear(other);
+                adjacent.get(other).clear(variable);
+            }
+            adjacent.set(variable, new BitSet());
+            addClique(clique);
+        }
+        connectCliques();
+
+        // every CPT goes to the first clique that holds its whole family.
+        for (int c = 0; c < cliques.size(); c++) {
+            assigned.add(new ArrayList<>());
+        }
+        for (Node node : bn.getNodes()) {
+            int[] family = node.getCpt().getVariables();
+            for (int c = 0; c < cliques.size(); c++) {
+                if (containsAll(cliques.get(c), family)) {
+                    assigned.get(c).add(node);
+                    break;
+                }
+            }
+        }
+
+        // the evidence of a variable is entered in the smallest clique holding it.
+        home = new int[numberOfNodes];
+        for (int id = 0; id < numberOfNodes; id++) {
+            home[id] = -1;
+            for (int c = 0; c < cliques.size(); c++) {
+                if (contains(cliques.get(c), id)
+                        && (home[id] == -1 || cliques.get(c).length < cliques.get(home[id]).length)) {
+                    home[id] = c;
+                }
+            }
+        }
+        observed = new int[numberOfNodes];
+        Arrays.fill(observed, -1);
+        int numberOfCliques = cliques.size();
+        basePotentials = new Factor[numberOfCliques];
+        potentials = new Factor[numberOfCliques];
+        upward = new Factor[numberOfCliques];
+        downward = new Factor[numberOfCliques];
+        beliefs = new Factor[numberOfCliques];
+        marginals = new double[numberOfNodes][];
+        networkVersion = bn.getVersion();
+    }
+
+    /**
+     * Replace all the evidence.
+     *
+     * @param evidences the evidence, as pairs of variable label and observed value.
+     */
+    public void setEvidence(ArrayList<String[]> evidences) {
+        for (Node node : bn.getNodes()) {
+            retract(node.getLabel());
+        }
+        if (evidences != null) {
+            for (String[] evidence : evidences) {
+                observe(evidence[0], evidence[1]);
+            }
+        }
+    }
+
+    /**
+     * Observe a value of a variable, or change its observed value. Only the messages that
+     * depend on the clique holding the variable's evidence are recomputed afterwards.
+     *
+     * @param label the label of the variable.
+     * @param value the observed value.
+     */
+    public void observe(String label, String value) {
+        Node node = bn.getNode(label);
+        int outcome = node.getOutcomeIndex(value);
+        if (observed[node.getId()] != outcome) {
+            observed[node.getId()] = outcome;
+            invalidate(home[node.getId()]);
+        }
+    }
+
+    /**
+     * Retract the observation of a variable, if it was observed.
+     *
+     * @param label the label of the variable.
+     */
+    public void retract(String label) {
+        Node node = bn.getNode(label);
+        if (observed[node.getId()] != -1) {
+            observed[node.getId()] = -1;
+            invalidate(home[node.getId()]);
+        }
+    }
+
+    /**
+     * Get the observed value of a variable.
+     *
+     * @param label the label of the variable.
+     * @return the observed value, or null if the variable is not observed.
+     */
+    public String getObservedValue(String label) {
+        Node node = bn.getNode(label);
+        int outcome = observed[node.getId()];
+        return outcome == -1 ? null : node.getOutcomes().get(outcome);
+    }
+
+    /**
+     * Calibrate the whole tree for the current evidence, computing the marginal of every variable.
+     */
+    public void calibrate() {
+        for (Node node : bn.getNodes()) {
+            getMarginal(node.getLabel());
+        }
+    }
+
+    /**
+     * Get the marginal distribution of a variable given the evidence. Only the messages
+     * into the variable's clique that are not up to date are computed.
+     *
+     * @param label the label of the variable.
+     * @return the probability of each of the variable's outcomes.
+     */
+    public double[] getMarginal(String label) {
+        checkVersion();
+        int id = bn.getNode(label).getId();
+        if (marginals[id] == null) {
+            int[] others = Arrays.stream(cliques.get(home[id])).filter(other -> other != id).toArray();
+            double[] marginal = FactorOperations.sumOut(belief(home[id]), others).getValues().clone();
+            FactorOperations.normalize(marginal);
+            marginals[id] = marginal;
+        }
+        return marginals[id];
+    }
+
+    /**
+     * Get the probability of a single value of a variable given the evidence.
+     *
+     * @param label the label of the variable.
+     * @param value the value of the variable.
+     * @return the posterior probability of the value.
+     */
+    public double getProbability(String label, String value) {
+        Node node = bn.getNode(label);
+        return getMarginal(label)[node.getOutcomeIndex(value)];
+    }
+
+    /**
+     * Get the probability of the current evidence.
+     *
+     * @return the probability of the evidence.
+     */
+    public double getEvidenceProbability() {
+        checkVersion();
+        return FactorKernels.sum(belief(visitOrder[0]).getValues());
+    }
+
+    /**
+     * Get the number of messages computed so far.
+     *
+     * @return the number of messages computed.
+     */
+    public int getMessagesComputed() {
+        return messagesComputed;
+    }
+
+    /**
+     * Get the cliques of the tree.
+     *
+     * @return the variable ids of every clique.
+     */
+    public ArrayList<int[]> getCliques() {
+        return cliques;
+    }
+
+    /**
+     * Drop the potentials and messages if the network changed since they were built, so the
+     * next query is answered with the current CPTs. The cliques are kept, as only the values
+     * of the CPTs may change under a junction tree.
+     */
+    private void checkVersion() {
+        long version = bn.getVersion();
+        if (version != networkVersion) {
+            Arrays.fill(basePotentials, null);
+            Arrays.fill(potentials, null);
+            Arrays.fill(upward, null);
+            Arrays.fill(downward, null);
+            Arrays.fill(beliefs, null);
+            Arrays.fill(marginals, null);
+            networkVersion = version;
+        }
+    }
+
+    /**
+     * Mark everything that depends on the potential of a clique as out of date: the messages
+     * sent towards the root from the clique and its ancestors, the messages sent into every
+     * subtree that does not hold the clique, and every belief and marginal.
+     *
+     * @param clique the clique whose evidence changed.
+     */
+    private void invalidate(int clique) {
+        boolean[] onPath = new boolean[cliques.size()];
+        for (int c = clique; c != -1; c = parent[c]) {
+            onPath[c] = true;
+            upward[c] = null;
+        }
+        for (int c = 0; c < cliques.size(); c++) {
+            if (!onPath[c]) {
+                downward[c] = null;
+            }
+            beliefs[c] = null;
+        }
+        potentials[clique] = null;
+        Arrays.fill(marginals, null);
+    }
+
+    /**
+     * Get the potential of a clique: its CPTs and the indicators of the evidence entered in it.
+     *
+     * @param clique the clique.
+     * @return the potential.
+     */
+    private Factor potential(int clique) {
+        if (potentials[clique] == null) {
+            if (basePotentials[clique] == null) {
+                ArrayList<Factor> factors = new ArrayList<>();
+                factors.add(ones(cliques.get(clique)));
+                for (Node node : assigned.get(clique)) {
+                    factors.add(node.getCpt().getFactor());
+                }
+                basePotentials[clique] = FactorOperations.product(factors.toArray(new Factor[0]));
+            }
+            ArrayList<Factor> factors = new ArrayList<>();
+            factors.add(basePotentials[clique]);
+            for (int id : cliques.get(clique)) {
+                if (home[id] == clique && observed[id] != -1) {
+                    factors.add(indicator(bn.getNodes().get(id), observed[id]));
+                }
+            }
+            potentials[clique] = factors.size() == 1 ? basePotentials[clique]
+                    : FactorOperations.product(factors.toArray(new Factor[0]));
+        }
+        return potentials[clique];
+    }
+
+    /**
+     * Get the message a clique sends to its parent, computing it if it is out of date.
+     *
+     * @param clique the sending clique.
+     * @return the message.
+     */
+    private Factor upward(int clique) {
+        if (upward[clique] == null) {
+            upward[clique] = message(clique, incoming(clique, -1), separators[clique]);
+        }
+        return upward[clique];
+    }
+
+    /**
+     * Get the message a clique receives from its parent, computing it if it is out of date.
+     *
+     * @param clique the receiving clique.
+     * @return the message.
+     */
+    private Factor downward(int clique) {
+        if (downward[clique] == null) {
+            downward[clique] = message(parent[clique], incoming(parent[clique], clique), separators[clique]);
+        }
+        return downward[clique];
+    }
+
+    /**
+     * Get the calibrated belief of a clique: its potential times all of its incoming messages.
+     *
+     * @param clique the clique.
+     * @return the belief.
+     */
+    private Factor belief(int clique) {
+        if (beliefs[clique] == null) {
+            ArrayList<Factor> factors = incoming(clique, -1);
+            if (parent[clique] != -1) {
+                factors.add(downward(clique));
+            }
+            factors.add(0, potential(clique));
+            beliefs[clique] = FactorOperations.product(factors.toArray(new Factor[0]));
+        }
+        return beliefs[clique];
+    }
+
+    /**
+     * Compute the message a clique sends over a separator: its potential times its incoming
+     * messages, with every variable outside the separator summed out.
+     *
+     * @param clique    the sending clique.
+     * @param incoming  the messages the clique received from its other neighbours.
+     * @param separator the variables of the separator.
+     * @return the message.
+     */
+    private Factor message(int clique, ArrayList<Factor> incoming, int[] separator) {
+        messagesComputed++;
+        incoming.add(0, potential(clique));
+        int[] sumOut = Arrays.stream(cliques.get(clique)).filter(id -> !contains(separator, id)).toArray();
+        return FactorOperations.productSumOut(incoming.toArray(new Factor[0]), sumOut);
+    }
+
+    /**
+     * Collect the messages a clique receives from its neighbours.
+     *
+     * @param clique  the clique.
+     * @param exclude a child whose message is left out (the receiver of a message), or -1 to
+     *                leave out the parent's message instead.
+     * @return the messages.
+     */
+    private ArrayList<Factor> incoming(int clique, int exclude) {
+        ArrayList<Factor> messages = new ArrayList<>();
+        for (Integer child : children.get(clique)) {
+            if (child != exclude) {
+                messages.add(upward(child));
+            }
+        }
+        if (exclude != -1 && parent[clique] != -1) {
+            messages.add(downward(clique));
+        }
+        return messages;
+    }
+
+    /**
+     * Add a clique unless it is contained in one found before.
+     *
+     * @param clique the variable ids of the clique.
+     */
+    private void addClique(int[] clique) {
+        for (int[] existing : cliques) {
+            if (containsAll(existing, clique)) {
+                return;
+            }
+        }
+        cliques.add(clique);
+    }
+
+    /**
+     * Join the cliques into a tree by a maximum spanning tree on the separator sizes, which
+     * gives the running intersection property for cliques of a triangulated graph.
+     */
+    private void connectCliques() {
+        int numberOfCliques = cliques.size();
+        parent = new int[numberOfCliques];
+        visitOrder = new int[numberOfCliques];
+        separators = new int[numberOfCliques][];
+        boolean[] inTree = new boolean[numberOfCliques];
+        int[] bestWeight = new int[numberOfCliques];
+        Arrays.fill(parent, -1);
+        Arrays.fill(bestWeight, -1);
+        bestWeight[0] = 0;
+        for (int c = 0; c < numberOfCliques; c++) {
+            children.add(new ArrayList<>());
+        }
+
+        for (int i = 0; i < numberOfCliques; i++) {
+            // add the clique with the largest separator to the tree.
+            int next = -1;
+            for (int c = 0; c < numberOfCliques; c++) {
+                if (!inTree[c] && (next == -1 || bestWeight[c] > bestWeight[next])) {
+                    next = c;
+                }
+            }
+            inTree[next] = true;
+            visitOrder[i] = next;
+            separators[next] = parent[next] == -1 ? new int[0] : intersect(cliques.get(next), cliques.get(parent[next]));
+            if (parent[next] != -1) {
+                children.get(parent[next]).add(next);
+            }
+            for (int c = 0; c < numberOfCliques; c++) {
+                int weight = intersect(cliques.get(next), cliques.get(c)).length;
+                if (!inTree[c] && weight > bestWeight[c]) {
+                    bestWeight[c] = weight;
+                    parent[c] = next;
+                }
+            }
+        }
+    }
+
+    /**
+     * Create a factor of ones over a set of variables.
+     *
+     * @param variables the variable ids.
+     * @return the factor.
+     */
+    private Factor ones(int[] variables) {
+        int[] cardinalities = new int[variables.length];
+        for (int i = 0; i < variables.length; i++) {
+            cardinalities[i] = bn.getNodes().get(variables[i]).getCardinality();
+        }
+        double[] values = new double[Factor.computeSize(cardinalities)];
+        Arrays.fill(values, 1.0);
+        return new Factor(variables, cardinalities, values);
+    }
+
+    /**
+     * Create the indicator of an observed value: one for the observed value, zero otherwise.
+     *
+     * @param node     the observed node.
+     * @param observed the observed outcome index.
+     * @return the factor.
+     */
+    private Factor indicator(Node node, int observed) {
+        double[] values = new double[node.getCardinality()];
+        values[observed] = 1.0;
+        return new Factor(new int[]{node.getId()}, new int[]{node.getCardinality()}, values);
+    }
+
+    /**
+     * Find an elimination order for the whole network with maximum cardinality search.
+     *
+     * @param bn the Bayesian network.
+     * @return the order, covering every node.
+     */
+    private static String[] defaultOrder(BayesianNetwork bn) {
+        if (bn.getNodes().isEmpty()) {
+            return new String[0];
+        }
+        String first = bn.getNodes().get(0).getLabel();
+        ArrayList<String> order = new ArrayList<>(Arrays.asList(
+                new Ordering(bn).maximumCardinalitySearch(first)));
+        order.add(first);
+        return order.toArray(new String[0]);
+    }
+
+    /**
+     * Get the variables two sets have in common.
+     *
+     * @param first  the first set of variable ids.
+     * @param second the second set of variable ids.
+     * @return the ids in both sets.
+     */
+    private static int[] intersect(int[] first, int[] second) {
+        return Arrays.stream(first).filter(id -> contains(second, id)).toArray();
+    }
+
+    /**
+     * Check whether a set of variables contains all of another set.
+     *
+     * @param set    the variable ids.
+     * @param subset the ids that should all be in the set.
+     * @return true if every id of the subset is in the set.
+     */
+    private static boolean containsAll(int[] set, int[] subset) {
+        for (int id : subset) {
+            if (!contains(set, id)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Check whether a set of variables contains a variable.
+     *
+     * @param set the variable ids.
+     * @param id  the id to look for.
+     * @return true if the id is in the set.
+     */
+    private static boolean contains(int[] set, int id) {
+        for (int variable : set) {
+            if (variable == id) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,183 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+/**
+ * Most probable explanation (MPE) and maximum a posteriori (MAP) queries by max-product
+ * variable elimination. Hidden variables outside the explanation are summed out first, then
+ * the explanation variables are maxed out one by one while recording the maximising value
+ * for every combination of the variables left. A traceback through those records, in reverse
+ * elimination order, recovers the jointly most likely assignment. The cost is the same as one
+ * marginal query with the same order.
+ *
+ * @author: 210017984
+ */
+public class MaxProductElimination {
+
+    // initialise variables.
+    private BayesianNetwork bn;
+    private ArrayList<String> order;
+    private ArrayList<String[]> evidences;
+    private double probability; // the joint probability of the last explanation and the evidence.
+
+    /**
+     * Create a new max-product elimination run.
+     *
+     * @param bn        the Bayesian network.
+     * @param order     the elimination order. Variables it does not mention are eliminated last.
+     * @param evidences the evidence, as pairs of variable label and observed value.
+     */
+    public MaxProductElimination(BayesianNetwork bn, String[] order, ArrayList<String[]> evidences) {
+        this.bn = bn;
+        this.order = new ArrayList<>();
+        for (String label : order) {
+            this.order.add(bn.getNode(label).getLabel());
+        }
+        for (Node node : bn.getNodes()) {
+            if (!this.order.contains(node.getLabel())) {
+                this.order.add(node.getLabel());
+            }
+        }
+        this.evidences = evidences == null ? new ArrayList<>() : evidences;
+    }
+
+    /**
+     * Find the most probable explanation: the most likely joint assignment of every variable
+     * that is not observed.
+     *
+     * @return the value of every unobserved variable, in elimination order.
+     */
+    public LinkedHashMap<String, String> runMPE() {
+        ArrayList<String> explained = new ArrayList<>();
+        for (Node node : bn.getNodes()) {
+            if (!isObserved(node)) {
+                explained.add(node.getLabel());
+            }
+        }
+        return runMAP(explained.toArray(new String[0]));
+    }
+
+    /**
+     * Find the maximum a posteriori assignment of a set of variables, summing out every other
+     * unobserved variable.
+     *
+     * @param labels the labels of the variables to explain.
+     * @return the most likely value of each of the variables, in elimination order.
+     */
+    public LinkedHashMap<String, String> runMAP(String... labels) {
+        ArrayList<Node> explained = new ArrayList<>();
+        for (String label : labels) {
+            Node node = bn.getNode(label);
+            if (isObserved(node)) {
+                throw new IllegalArgumentException("Variable " + label + " is observed and cannot be explained.");
+            }
+            explained.add(node);
+        }
+
+        // the CPTs, sliced to the evidence.
+        int[] variables = new int[evidences.size()];
+        int[] observed = new int[evidences.size()];
+        for (int e = 0; e < evidences.size(); e++) {
+            Node evNode = bn.getNode(evidences.get(e)[0]);
+            variables[e] = evNode.getId();
+            observed[e] = evNode.getOutcomeIndex(evidences.get(e)[1]);
+        }
+        ArrayList<Factor> factors = new ArrayList<>();
+        for (Node node : bn.getNodes()) {
+            factors.add(FactorOperations.reduce(node.getCpt().getFactor(), variables, observed));
+        }
+
+        // sum out the hidden variables first, as MAP only stays exact when no sum follows a max.
+        for (String label : order) {
+            Node node = bn.getNode(label);
+            if (!isObserved(node) && !explained.contains(node)) {
+                Factor[] containing = removeContaining(factors, node.getId());
+                if (containing.length > 0) {
+                    factors.add(FactorOperations.productSumOut(containing, node.getId()));
+                }
+            }
+        }
+
+        // then max out the explained variables, keeping the maximising values for the traceback.
+        ArrayList<Node> maxed = new ArrayList<>();
+        ArrayList<Factor> maxedResults = new ArrayList<>();
+        ArrayList<int[]> argmaxes = new ArrayList<>();
+        for (String label : order) {
+            Node node = bn.getNode(label);
+            if (!explained.contains(node)) {
+                continue;
+            }
+            // the variable's own CPT, or what it became, always contains it.
+            Factor product = FactorOperations.product(removeContaining(factors, node.getId()));
+            int[] argmax = new int[product.size() / node.getCardinality()];
+            Factor result = FactorOperations.maxOut(product, node.getId(), argmax);
+            factors.add(result);
+            maxed.add(node);
+            maxedResults.add(result);
+            argmaxes.add(argmax);
+        }
+
+        // only scalars are left; their product is the probability of the explanation and the evidence.
+        probability = 1.0;
+        for (Factor factor : factors) {
+            probability *= factor.getValues()[0];
+        }
+
+        // trace back, from the last variable maxed out to the first.
+        int[] assignment = new int[bn.getNodes().size()];
+        for (int m = maxed.size() - 1; m >= 0; m--) {
+            Factor result = maxedResults.get(m);
+            int offset = 0;
+            for (int i = 0; i < result.getVariables().length; i++) {
+                offset += assignment[result.getVariables()[i]] * result.getStrides()[i];
+            }
+            assignment[maxed.get(m).getId()] = argmaxes.get(m)[offset];
+        }
+        LinkedHashMap<String, String> explanation = new LinkedHashMap<>();
+        for (Node node : maxed) {
+            explanation.put(node.getLabel(), node.getOutcomes().get(assignment[node.getId()]));
+        }
+        return explanation;
+    }
+
+    /**
+     * Get the joint probability of the last explanation and the evidence.
+     *
+     * @return P(explanation, evidence).
+     */
+    public double getProbability() {
+        return probability;
+    }
+
+    /**
+     * Remove the factors that contain a variable from a list.
+     *
+     * @param factors  the factors, the ones containing the variable are removed.
+     * @param variable the id of the variable.
+     * @return the removed factors.
+     */
+    private Factor[] removeContaining(ArrayList<Factor> factors, int variable) {
+        ArrayList<Factor> containing = new ArrayList<>();
+        for (Factor factor : factors) {
+            if (factor.indexOf(variable) != -1) {
+                containing.add(factor);
+            }
+        }
+        factors.removeAll(containing);
+        return containing.toArray(new Factor[0]);
+    }
+
+    /**
+     * Check whether a node is observed.
+     *
+     * @param node the node.
+     * @return true if the node has evidence.
+     */
+    private boolean isObserved(Node node) {
+        for (String[] ev : evidences) {
+            if (bn.getNode(ev[0]) == node) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
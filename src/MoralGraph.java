@@ -0,0 +1,225 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * An integer-indexed view of the structure of a Bayesian network, built once and shared by
+ * the orderings and the relevance analysis. Every node is referred to by its id. It holds the
+ * parents and children of every node, and the moral graph: every node linked to its parents,
+ * and the parents of every node linked to each other. Small networks keep the moral graph as
+ * a dense adjacency matrix of bits, so adjacency is one bit test and a neighbourhood is copied
+ * one 64-bit word at a time; large networks keep sorted adjacency lists in one compressed array
+ * instead, so memory grows with the number of edges rather than the square of the nodes.
+ *
+ * @author: 210017984
+ */
+public class MoralGraph {
+
+    // networks with up to this many nodes get a dense adjacency matrix (2MB at the limit).
+    public static final int DENSE_LIMIT = 4096;
+
+    // initialise variables.
+    private int numberOfNodes;
+    private int words; // the number of 64-bit words in a set of nodes.
+    private int[][] parents;
+    private int[][] children;
+    private long[] matrix; // the dense adjacency matrix, row by row, or null.
+    private int[] offsets; // where the neighbours of each node start in the compressed adjacency.
+    private int[] adjacency; // the neighbours of every node, sorted, one node after the other.
+
+    /**
+     * Index the structure of a Bayesian network.
+     *
+     * @param nodes the nodes of the network, each at the position of its id.
+     */
+    public MoralGraph(ArrayList<Node> nodes) {
+        this.numberOfNodes = nodes.size();
+        this.words = (numberOfNodes + 63) >>> 6;
+        this.parents = new int[numberOfNodes][];
+        this.children = new int[numberOfNodes][];
+        for (Node node : nodes) {
+            parents[node.getId()] = ids(node.getParents());
+            children[node.getId()] = ids(node.getChildren());
+        }
+
+        // moralise into a list of links, a node and its parent or two parents of a node.
+        int numberOfLinks = 0;
+        for (int v = 0; v < numberOfNodes; v++) {
+            int p = parents[v].length;
+            numberOfLinks += p + p * (p - 1) / 2;
+        }
+        int[] firsts = new int[numberOfLinks];
+        int[] seconds = new int[numberOfLinks];
+        int link = 0;
+        for (int v = 0; v < numberOfNodes; v++) {
+            int[] nodeParents = parents[v];
+            for (int i = 0; i < nodeParents.length; i++) {
+                firsts[link] = v;
+                seconds[link++] = nodeParents[i];
+                for (int j = i + 1; j < nodeParents.length; j++) {
+                    firsts[link] = nodeParents[i];
+                    seconds[link++] = nodeParents[j];
+                }
+            }
+        }
+
+        if (numberOfNodes <= DENSE_LIMIT) {
+            matrix = new long[numberOfNodes * words];
+            for (int l = 0; l < numberOfLinks; l++) {
+                matrix[firsts[l] * words + (seconds[l] >>> 6)] |= 1L << seconds[l];
+                matrix[seconds[l] * words + (firsts[l] >>> 6)] |= 1L << firsts[l];
+            }
+        } else {
+            // both directions of every link, grouped by node, then sorted without repeats.
+            int[] starts = new int[numberOfNodes + 1];
+            for (int l = 0; l < numberOfLinks; l++) {
+                starts[firsts[l] + 1]++;
+                starts[seconds[l] + 1]++;
+            }
+            for (int v = 0; v < numberOfNodes; v++) {
+                starts[v + 1] += starts[v];
+            }
+            int[] grouped = new int[2 * numberOfLinks];
+            int[] fill = Arrays.copyOf(starts, numberOfNodes);
+            for (int l = 0; l < numberOfLinks; l++) {
+                grouped[fill[firsts[l]]++] = seconds[l];
+                grouped[fill[seconds[l]]++] = firsts[l];
+            }
+            offsets = new int[numberOfNodes + 1];
+            adjacency = new int[grouped.length];
+            int position = 0;
+            for (int v = 0; v < numberOfNodes; v++) {
+                Arrays.sort(grouped, starts[v], starts[v + 1]);
+                for (int i = starts[v]; i < starts[v + 1]; i++) {
+                    if (i == starts[v] || grouped[i] != grouped[i - 1]) {
+                        adjacency[position++] = grouped[i];
+                    }
+                }
+                offsets[v + 1] = position;
+            }
+            adjacency = Arrays.copyOf(adjacency, position);
+        }
+    }
+
+    /**
+     * Get the number of nodes.
+     *
+     * @return the number of nodes.
+     */
+    public int size() {
+        return numberOfNodes;
+    }
+
+    /**
+     * Check whether the moral graph is kept as a dense adjacency matrix.
+     *
+     * @return true for the dense matrix, false for the compressed adjacency lists.
+     */
+    public boolean isDense() {
+        return matrix != null;
+    }
+
+    /**
+     * Get the parents of a node.
+     *
+     * @param v the id of the node.
+     * @return the ids of its parents, which must not be modified.
+     */
+    public int[] getParents(int v) {
+        return parents[v];
+    }
+
+    /**
+     * Get the children of a node.
+     *
+     * @param v the id of the node.
+     * @return the ids of its children, which must not be modified.
+     */
+    public int[] getChildren(int v) {
+        return children[v];
+    }
+
+    /**
+     * Check whether two nodes are neighbours in the moral graph.
+     *
+     * @param first  the id of the first node.
+     * @param second the id of the second node.
+     * @return true if they are linked.
+     */
+    public boolean isAdjacent(int first, int second) {
+        if (matrix != null) {
+            return (matrix[first * words + (second >>> 6)] & (1L << second)) != 0;
+        }
+        return Arrays.binarySearch(adjacency, offsets[first], offsets[first + 1], second) >= 0;
+    }
+
+    /**
+     * Get the number of neighbours of a node in the moral graph.
+     *
+     * @param v the id of the node.
+     * @return its number of neighbours.
+     */
+    public int degree(int v) {
+        if (matrix != null) {
+            int degree = 0;
+            for (int w = v * words; w < (v + 1) * words; w++) {
+                degree += Long.bitCount(matrix[w]);
+            }
+            return degree;
+        }
+        return offsets[v + 1] - offsets[v];
+    }
+
+    /**
+     * Get the neighbours of a node in the moral graph.
+     *
+     * @param v the id of the node.
+     * @return the ids of its neighbours, in increasing order.
+     */
+    public int[] getNeighbours(int v) {
+        if (matrix != null) {
+            int[] neighbours = new int[degree(v)];
+            int position = 0;
+            for (int w = 0; w < words; w++) {
+                long bits = matrix[v * words + w];
+                while (bits != 0) {
+                    neighbours[position++] = (w << 6) + Long.numberOfTrailingZeros(bits);
+                    bits &= bits - 1;
+                }
+            }
+            return neighbours;
+        }
+        return Arrays.copyOfRange(adjacency, offsets[v], offsets[v + 1]);
+    }
+
+    /**
+     * Get the neighbours of a node in the moral graph as a bit set the caller can modify.
+     *
+     * @param v the id of the node.
+     * @return the set of its neighbours.
+     */
+    public BitSet getNeighbourSet(int v) {
+        if (matrix != null) {
+            return BitSet.valueOf(Arrays.copyOfRange(matrix, v * words, (v + 1) * words));
+        }
+        BitSet neighbours = new BitSet();
+        for (int i = offsets[v]; i < offsets[v + 1]; i++) {
+            neighbours.set(adjacency[i]);
+        }
+        return neighbours;
+    }
+
+    /**
+     * Get the ids of a list of nodes.
+     *
+     * @param nodes the nodes.
+     * @return their ids, in the same order.
+     */
+    private static int[] ids(ArrayList<Node> nodes) {
+        int[] ids = new int[nodes.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = nodes.get(i).getId();
+        }
+        return ids;
+    }
+}
@@ -1,4 +1,5 @@
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Objects;
 
 /**
@@ -11,17 +12,36 @@ public class Node {
     private ArrayList<Node> parents;
     private ArrayList<Node> children;
     private String label;
+    private int id;
+    private ArrayList<String> outcomes; // the values the node can take, in CPT order.
     private CPT cpt;
 
     /**
-     * Create a new node.
+     * Create a new binary node, with outcomes F and T (in that order).
      *
      * @param label the label of the node.
+     * @param id the id of the node - its position in the network, used to index factors.
      */
-    public Node(String label) {
+    public Node(String label, int id) {
+        this(label, id, new ArrayList<>(Arrays.asList("F", "T")));
+    }
+
+    /**
+     * Create a new node with the given outcomes.
+     *
+     * @param label the label of the node.
+     * @param id the id of the node - its position in the network, used to index factors.
+     * @param outcomes the values the node can take, in the order used by its CPT.
+     */
+    public Node(String label, int id, ArrayList<String> outcomes) {
+        if (outcomes.size() < 2) {
+            throw new IllegalArgumentException("Node " + label + " needs at least two outcomes.");
+        }
         parents = new ArrayList<>();
         children = new ArrayList<>();
         this.label = label;
+        this.id = id;
+        this.outcomes = outcomes;
         this.cpt = new CPT(this);
     }
 
@@ -33,6 +53,44 @@ public class Node {
         return label;
     }
 
+    /**
+     * Get id of the node.
+     * @return id of the node.
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Get the outcomes (values) of the node.
+     * @return the node's outcomes, in CPT order.
+     */
+    public ArrayList<String> getOutcomes() {
+        return outcomes;
+    }
+
+    /**
+     * Get the number of values the node can take.
+     * @return the cardinality of the node.
+     */
+    public int getCardinality() {
+        return outcomes.size();
+    }
+
+    /**
+     * Get the index of an outcome, as used in the node's CPT.
+     * @param outcome the outcome (case insensitive).
+     * @return the index of the outcome.
+     */
+    public int getOutcomeIndex(String outcome) {
+        for (int i = 0; i < outcomes.size(); i++) {
+            if (outcomes.get(i).equalsIgnoreCase(outcome)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Node " + label + " has no outcome " + outcome + ".");
+    }
+
     /**
      * Get all the node's parents.
      * @return node's parents.
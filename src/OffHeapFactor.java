@@ -0,0 +1,296 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * A dense factor whose values live outside the Java heap, used for intermediate factors
+ * too large to keep as a double[]. The values are held in direct buffers, or in buffers
+ * mapped from a temporary file when a spill directory is given, so factors larger than the
+ * available memory are paged by the operating system instead of filling the heap. The
+ * values are split into chunks because a single buffer cannot exceed 2GB.
+ *
+ * @author: 210017984
+ */
+public class OffHeapFactor implements FactorTable {
+
+    // number of values in each chunk (2^27 doubles, 1GB).
+    private static final int CHUNK_SHIFT = 27;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    // initialise variables.
+    private int[] variables; // ids of the variables in the factor.
+    private int[] cardinalities; // number of values each variable can take.
+    private int[] strides; // offset step for each variable.
+    private int size; // number of combinations.
+    private DoubleBuffer[] chunks; // the values, CHUNK_SIZE per buffer.
+    private File file; // backing file, null for direct memory.
+    private RandomAccessFile access; // open handle on the backing file.
+
+    /**
+     * Create a new off-heap factor with all values set to zero.
+     *
+     * @param variables     the ids of the variables in the factor.
+     * @param cardinalities the cardinality of each variable.
+     * @param directory     the directory of the backing file, or null to use direct memory.
+     */
+    public OffHeapFactor(int[] variables, int[] cardinalities, File directory) {
+        this.variables = variables;
+        this.cardinalities = cardinalities;
+        this.strides = Factor.computeStrides(cardinalities);
+        this.size = Factor.computeSize(cardinalities);
+        this.chunks = new DoubleBuffer[(int) (((long) size + CHUNK_SIZE - 1) >>> CHUNK_SHIFT)];
+        try {
+            if (directory != null) {
+                file = File.createTempFile("factor", ".bin", directory); // deleted by close().
+                access = new RandomAccessFile(file, "rw");
+                access.setLength((long) size * Double.BYTES);
+            }
+            for (int c = 0; c < chunks.length; c++) {
+                long start = (long) c << CHUNK_SHIFT;
+                int length = (int) Math.min(CHUNK_SIZE, size - start);
+                ByteBuffer bytes;
+                if (access != null) {
+                    bytes = access.getChannel().map(FileChannel.MapMode.READ_WRITE,
+                            start * Double.BYTES, (long) length * Double.BYTES);
+                } else {
+                    bytes = ByteBuffer.allocateDirect(length * Double.BYTES); // zeroed by the JVM.
+                }
+                chunks[c] = bytes.order(ByteOrder.nativeOrder()).asDoubleBuffer();
+            }
+        } catch (IOException e) {
+            close(); // deletes the backing file.
+            throw new UncheckedIOException("Could not create an off-heap factor of " + size + " values.", e);
+        } catch (RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Create a deep copy of an off-heap factor, stored the same way: in direct memory, or in a
+     * new file next to the backing file of the copied factor.
+     *
+     * @param copy the factor to copy.
+     */
+    public OffHeapFactor(OffHeapFactor copy) {
+        this(copy.variables.clone(), copy.cardinalities.clone(), copy.file == null ? null : copy.file.getParentFile());
+        for (int c = 0; c < chunks.length; c++) {
+            DoubleBuffer chunk = copy.chunks[c].duplicate();
+            chunk.clear();
+            chunks[c].duplicate().put(chunk);
+        }
+    }
+
+    /**
+     * Get the ids of the variables in the factor.
+     *
+     * @return the variable ids.
+     */
+    public int[] getVariables() {
+        return variables;
+    }
+
+    /**
+     * Get the cardinality of each variable in the factor.
+     *
+     * @return the cardinalities.
+     */
+    public int[] getCardinalities() {
+        return cardinalities;
+    }
+
+    /**
+     * Get the stride of each variable in the factor.
+     *
+     * @return the strides.
+     */
+    public int[] getStrides() {
+        return strides;
+    }
+
+    /**
+     * Get the number of values (combinations) in the factor.
+     *
+     * @return the size of the factor.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Get the value stored at a given offset.
+     *
+     * @param offset the offset of the combination.
+     * @return the value of the combination.
+     */
+    public double getValue(int offset) {
+        return chunks[offset >>> CHUNK_SHIFT].get(offset & CHUNK_MASK);
+    }
+
+    /**
+     * Add to the value stored at a given offset.
+     *
+     * @param offset the offset of the combination.
+     * @param value  the value to add.
+     */
+    public void addValue(int offset, double value) {
+        DoubleBuffer chunk = chunks[offset >>> CHUNK_SHIFT];
+        int index = offset & CHUNK_MASK;
+        chunk.put(index, chunk.get(index) + value);
+    }
+
+    /**
+     * Copy the values into a dense factor on the heap. Only meant for factors that have
+     * become small enough again, such as the final answer of a query.
+     *
+     * @return the dense version of the factor.
+     */
+    public Factor toDense() {
+        Factor dense = new Factor(variables, cardinalities);
+        double[] values = dense.getValues();
+        for (int c = 0; c < chunks.length; c++) {
+            DoubleBuffer chunk = chunks[c].duplicate();
+            chunk.clear();
+            chunk.get(values, c << CHUNK_SHIFT, chunk.remaining());
+        }
+        return dense;
+    }
+
+    /**
+     * Release and delete the backing file. Direct memory is returned once the factor is no
+     * longer referenced; the buffers must not be used after closing.
+     */
+    public void close() {
+        chunks = new DoubleBuffer[0];
+        if (access != null) {
+            try {
+                access.close();
+            } catch (IOException e) {
+                // nothing left to release.
+            }
+            access = null;
+        }
+        if (file != null) {
+            file.delete();
+            file = null;
+        }
+    }
+
+    /**
+     * Multiply a set of factors and sum out the given variables, writing the result off the
+     * heap. The inputs can be stored in any way; the result is never held as a double[].
+     *
+     * @param factors   the factors to multiply.
+     * @param variables the ids of the variables to sum out of the product.
+     * @param directory the directory of the backing file, or null to use direct memory.
+     * @return a new off-heap factor over the remaining variables.
+     */
+    public static OffHeapFactor productSumOut(FactorTable[] factors, int[] variables, File directory) {
+        int numberOfFactors = factors.length;
+
+        // collect the union of the variables, in order of appearance.
+        int total = 0;
+        for (FactorTable factor : factors) {
+            total += factor.getVariables().length;
+        }
+        int[] union = new int[total];
+        int[] unionCardinalities = new int[total];
+        int numberOfVariables = 0;
+        for (FactorTable factor : factors) {
+            for (int i = 0; i < factor.getVariables().length; i++) {
+                int variable = factor.getVariables()[i];
+                if (positionOf(union, numberOfVariables, variable) == -1) {
+                    union[numberOfVariables] = variable;
+                    unionCardinalities[numberOfVariables] = factor.getCardinalities()[i];
+                    numberOfVariables++;
+                }
+            }
+        }
+
+        // the result keeps every variable that is not summed out.
+        int remaining = 0;
+        int[] resultVariables = new int[numberOfVariables];
+        int[] resultCardinalities = new int[numberOfVariables];
+        for (int d = 0; d < numberOfVariables; d++) {
+            if (positionOf(variables, variables.length, union[d]) == -1) {
+                resultVariables[remaining] = union[d];
+                resultCardinalities[remaining] = unionCardinalities[d];
+                remaining++;
+            }
+        }
+        OffHeapFactor result = new OffHeapFactor(Arrays.copyOf(resultVariables, remaining),
+                Arrays.copyOf(resultCardinalities, remaining), directory);
+
+        // strides of every union variable in each input and in the result (zero when absent).
+        int[][] strides = new int[numberOfFactors][numberOfVariables];
+        int[] resultStrides = new int[numberOfVariables];
+        for (int d = 0; d < numberOfVariables; d++) {
+            for (int f = 0; f < numberOfFactors; f++) {
+                int position = positionOf(factors[f].getVariables(), factors[f].getVariables().length, union[d]);
+                strides[f][d] = position == -1 ? 0 : factors[f].getStrides()[position];
+            }
+            int position = positionOf(result.variables, remaining, union[d]);
+            resultStrides[d] = position == -1 ? 0 : result.strides[position];
+        }
+
+        long size = 1;
+        for (int d = 0; d < numberOfVariables; d++) {
+            size *= unionCardinalities[d];
+        }
+        int[] offsets = new int[numberOfFactors];
+        int[] counter = new int[numberOfVariables];
+        int resultOffset = 0;
+
+        for (long i = 0; i < size; i++) {
+            double value = 1.0;
+            for (int f = 0; f < numberOfFactors && value != 0.0; f++) {
+                value *= factors[f].getValue(offsets[f]);
+            }
+            if (value != 0.0) {
+                result.addValue(resultOffset, value);
+            }
+
+            // advance the odometer, last variable fastest.
+            for (int d = numberOfVariables - 1; d >= 0; d--) {
+                counter[d]++;
+                resultOffset += resultStrides[d];
+                for (int f = 0; f < numberOfFactors; f++) {
+                    offsets[f] += strides[f][d];
+                }
+                if (counter[d] < unionCardinalities[d]) {
+                    break;
+                }
+                resultOffset -= unionCardinalities[d] * resultStrides[d];
+                for (int f = 0; f < numberOfFactors; f++) {
+                    offsets[f] -= unionCardinalities[d] * strides[f][d];
+                }
+                counter[d] = 0;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Find the position of a value in the first elements of an array.
+     *
+     * @param array  the array to search.
+     * @param length the number of elements to search.
+     * @param value  the value to look for.
+     * @return the position of the value, or -1 if it is not found.
+     */
+    private static int positionOf(int[] array, int length, int value) {
+        for (int i = 0; i < length; i++) {
+            if (array[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
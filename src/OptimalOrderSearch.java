@@ -0,0 +1,485 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Properties;
+
+/**
+ * An anytime branch-and-bound search for an elimination order of minimum width (treewidth):
+ * the largest number of neighbours a variable has when it is eliminated, which sets the size
+ * of the largest factor on networks of binary variables. The best greedy order seeds the bound. The search then
+ * eliminates one variable at a time, depth first, trying the variables that add the least
+ * fill first. A branch is cut when the width so far or the minor-min-width lower bound of
+ * the graph left reaches the best width. Simplicial variables, and almost simplicial ones of
+ * low degree, are eliminated without branching, as some optimal order always starts with
+ * them. The graph left only depends on the set of variables eliminated, so a set already
+ * reached with a smaller width is not searched again. The search keeps the best order found
+ * until its deadline, and says whether it finished, which proves the order optimal. Results can
+ * be saved to a file kept next to the network and loaded back while its structure is unchanged.
+ *
+ * @author: 210017984
+ */
+public class OptimalOrderSearch {
+
+    // the number of sets of eliminated variables remembered at most.
+    public static final int MAX_VISITED = 1 << 20;
+
+    // initialise variables.
+    private ArrayList<Node> nodes;
+    private int queried; // the id of the queried variable.
+    private int numberOfNodes;
+    private int[] cardinalities;
+    private ArrayList<BitSet> moralGraph = new ArrayList<>();
+    private BitSet toEliminate = new BitSet(); // every variable but the queried one.
+    private HashMap<BitSet, Integer> visited = new HashMap<>(); // smallest width each set of remaining variables was reached with.
+    private int[] prefix; // the order being searched.
+    private int[] bestOrder;
+    private int bestWidth;
+    private boolean optimal = false;
+    private long expanded = 0;
+    private long deadline;
+
+    /**
+     * Prepare the search of an order for a query.
+     *
+     * @param bn      the Bayesian network.
+     * @param queried the label of the queried variable, which is never eliminated.
+     */
+    public OptimalOrderSearch(BayesianNetwork bn, String queried) {
+        this(bn.getNodes(), bn.getMoralGraph(), bn.getNode(queried));
+    }
+
+    /**
+     * Prepare the search of an order for a query on an indexed network.
+     *
+     * @param nodes   the nodes of the network, each at the position of its id.
+     * @param graph   the moral graph of the network.
+     * @param queried the queried node, which is never eliminated.
+     */
+    OptimalOrderSearch(ArrayList<Node> nodes, MoralGraph graph, Node queried) {
+        this.nodes = nodes;
+        this.queried = queried.getId();
+        this.numberOfNodes = graph.size();
+        this.cardinalities = new int[numberOfNodes];
+        for (Node node : nodes) {
+            cardinalities[node.getId()] = node.getCardinality();
+        }
+        for (int v = 0; v < numberOfNodes; v++) {
+            moralGraph.add(graph.getNeighbourSet(v));
+        }
+        toEliminate.set(0, numberOfNodes);
+        toEliminate.clear(this.queried);
+        this.prefix = new int[toEliminate.cardinality()];
+    }
+
+    /**
+     * Search for the best order until a deadline.
+     *
+     * @param budgetMillis the time allowed, in milliseconds.
+     * @return the best elimination order found.
+     */
+    public String[] search(long budgetMillis) {
+        deadline = System.nanoTime() + budgetMillis * 1000000L;
+        visited.clear();
+        expanded = 0;
+
+        // seed the bound with the best greedy order.
+        boolean[] eliminate = new boolean[numberOfNodes];
+        for (int v = toEliminate.nextSetBit(0); v >= 0; v = toEliminate.nextSetBit(v + 1)) {
+            eliminate[v] = true;
+        }
+        bestOrder = null;
+        bestWidth = Integer.MAX_VALUE;
+        for (int heuristic : new int[]{Ordering.MIN_FILL, Ordering.MIN_DEGREE, Ordering.WEIGHTED_MIN_FILL}) {
+            int[] order = Ordering.eliminationOrder(copy(moralGraph), cardinalities, eliminate, heuristic, null);
+            int width = width(order);
+            if (width < bestWidth) {
+                bestWidth = width;
+                bestOrder = order;
+            }
+        }
+
+        optimal = branch(copy(moralGraph), (BitSet) toEliminate.clone(), 0, 0);
+        return getOrder();
+    }
+
+    /**
+     * Get the best order found.
+     *
+     * @return the labels of the variables, in elimination order.
+     */
+    public String[] getOrder() {
+        String[] order = new String[bestOrder.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = nodes.get(bestOrder[i]).getLabel();
+        }
+        return order;
+    }
+
+    /**
+     * Get the width of the best order found.
+     *
+     * @return the largest number of neighbours a variable has when it is eliminated.
+     */
+    public int getWidth() {
+        return bestWidth;
+    }
+
+    /**
+     * Check whether the last search finished before its deadline, so its order is optimal.
+     *
+     * @return true if the order is proven optimal.
+     */
+    public boolean isOptimal() {
+        return optimal;
+    }
+
+    /**
+     * Get the number of search nodes the last search expanded.
+     *
+     * @return the number of expanded nodes.
+     */
+    public long getNodesExpanded() {
+        return expanded;
+    }
+
+    /**
+     * Save the best order to a file, next to the orders saved for other queries on the network.
+     *
+     * @param file the file of saved orders.
+     */
+    public void save(File file) {
+        Properties orders = read(file);
+        String structure = structure(nodes);
+        if (!structure.equals(orders.getProperty("structure"))) {
+            orders.clear(); // orders of an older structure are of no use any more.
+            orders.setProperty("structure", structure);
+        }
+        String key = nodes.get(queried).getLabel().toUpperCase();
+        orders.setProperty("order." + key, String.join(",", getOrder()));
+        orders.setProperty("width." + key, Integer.toString(bestWidth));
+        orders.setProperty("optimal." + key, Boolean.toString(optimal));
+        try (OutputStream out = new FileOutputStream(file)) {
+            orders.store(out, "Elimination orders");
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not save the orders to " + file + ".", e);
+        }
+    }
+
+    /**
+     * Load an order saved for a query, if the network still has the structure it was found on.
+     *
+     * @param file    the file of saved orders.
+     * @param bn      the Bayesian network.
+     * @param queried the label of the queried variable.
+     * @return the saved order, or null if there is none or the network changed.
+     */
+    public static String[] load(File file, BayesianNetwork bn, String queried) {
+        Properties orders = read(file);
+        String order = orders.getProperty("order." + queried.toUpperCase());
+        if (order == null || !structure(bn.getNodes()).equals(orders.getProperty("structure"))) {
+            return null;
+        }
+        return order.isEmpty() ? new String[0] : order.split(",");
+    }
+
+    /**
+     * Search below a partial order.
+     *
+     * @param graph     the elimination graph left by the partial order. It is consumed.
+     * @param remaining the variables left to eliminate.
+     * @param depth     the length of the partial order.
+     * @param width     the width of the partial order.
+     * @return false if the deadline passed, true if the subtree was searched completely.
+     */
+    private boolean branch(ArrayList<BitSet> graph, BitSet remaining, int depth, int width) {
+        if (System.nanoTime() > deadline) {
+            return false;
+        }
+        expanded++;
+
+        // eliminate the variables that need no branching.
+        int lowerBound = Math.max(width, minorMinWidth(graph, remaining));
+        for (int v = safeVariable(graph, remaining, lowerBound); v >= 0; v = safeVariable(graph, remaining, lowerBound)) {
+            width = Math.max(width, graph.get(v).cardinality());
+            eliminate(graph, v);
+            remaining.clear(v);
+            prefix[depth++] = v;
+        }
+        if (width >= bestWidth) {
+            return true;
+        }
+        if (remaining.isEmpty()) {
+            bestWidth = width;
+            bestOrder = Arrays.copyOf(prefix, depth);
+            return true;
+        }
+        if (Math.max(width, minorMinWidth(graph, remaining)) >= bestWidth) {
+            return true;
+        }
+
+        // a set of eliminated variables already reached with no larger width is searched already.
+        Integer seen = visited.get(remaining);
+        if (seen != null && seen <= width) {
+            return true;
+        }
+        if (seen != null || visited.size() < MAX_VISITED) {
+            visited.put((BitSet) remaining.clone(), width);
+        }
+
+        // branch on every variable left, least fill first.
+        ArrayList<Integer> candidates = new ArrayList<>();
+        long[] fill = new long[numberOfNodes];
+        BitSet scratch = new BitSet(numberOfNodes);
+        for (int v = remaining.nextSetBit(0); v >= 0; v = remaining.nextSetBit(v + 1)) {
+            fill[v] = Ordering.score(graph, cardinalities, v, Ordering.MIN_FILL, scratch);
+            candidates.add(v);
+        }
+        candidates.sort((first, second) -> Long.compare(fill[first], fill[second]));
+        for (int v : candidates) {
+            int childWidth = Math.max(width, graph.get(v).cardinality());
+            if (childWidth >= bestWidth) {
+                continue;
+            }
+            ArrayList<BitSet> child = copy(graph);
+            eliminate(child, v);
+            BitSet childRemaining = (BitSet) remaining.clone();
+            childRemaining.clear(v);
+            prefix[depth] = v;
+            if (!branch(child, childRemaining, depth + 1, childWidth)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Find a variable some optimal order eliminates next: a simplicial one, whose neighbours
+     * are all linked, or an almost simplicial one, whose neighbours but one are all linked,
+     * with no more neighbours than the lower bound.
+     *
+     * @param graph      the elimination graph.
+     * @param remaining  the variables left to eliminate.
+     * @param lowerBound a lower bound of the width of the branch.
+     * @return the id of the variable, or -1 if there is none.
+     */
+    private int safeVariable(ArrayList<BitSet> graph, BitSet remaining, int lowerBound) {
+        for (int v = remaining.nextSetBit(0); v >= 0; v = remaining.nextSetBit(v + 1)) {
+            BitSet neighbours = graph.get(v);
+            int[] adjacent = neighbours.stream().toArray();
+            // the neighbours each neighbour is not linked to.
+            BitSet[] missing = new BitSet[adjacent.length];
+            int firstMissing = -1;
+            for (int i = 0; i < adjacent.length; i++) {
+                missing[i] = (BitSet) neighbours.clone();
+                missing[i].andNot(graph.get(adjacent[i]));
+                missing[i].clear(adjacent[i]);
+                if (firstMissing == -1 && !missing[i].isEmpty()) {
+                    firstMissing = i;
+                }
+            }
+            if (firstMissing == -1) {
+                return v; // simplicial.
+            }
+            if (adjacent.length > lowerBound) {
+                continue;
+            }
+            // one end of the first missing link must be the neighbour left out of the clique.
+            int[] outsiders = {adjacent[firstMissing], missing[firstMissing].nextSetBit(0)};
+            for (int outsider : outsiders) {
+                boolean clique = true;
+                for (int i = 0; i < adjacent.length && clique; i++) {
+                    if (adjacent[i] != outsider) {
+                        BitSet links = (BitSet) missing[i].clone();
+                        links.clear(outsider);
+                        clique = links.isEmpty();
+                    }
+                }
+                if (clique) {
+                    return v; // almost simplicial.
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * The minor-min-width lower bound of the treewidth of the graph left: repeatedly take the
+     * variable of least degree, whose degree bounds the width, and contract it into its
+     * neighbour of least degree.
+     *
+     * @param graph     the elimination graph.
+     * @param remaining the variables left to eliminate.
+     * @return a lower bound of the width of any order of the variables left.
+     */
+    private int minorMinWidth(ArrayList<BitSet> graph, BitSet remaining) {
+        BitSet alive = (BitSet) remaining.clone();
+        alive.set(queried);
+        ArrayList<BitSet> minor = new ArrayList<>(graph.size());
+        for (BitSet row : graph) {
+            minor.add(row);
+        }
+        for (int v = alive.nextSetBit(0); v >= 0; v = alive.nextSetBit(v + 1)) {
+            minor.set(v, (BitSet) graph.get(v).clone());
+        }
+
+        int lowerBound = 0;
+        while (alive.cardinality() > 1) {
+            int v = leastDegree(minor, alive);
+            BitSet neighbours = minor.get(v);
+            lowerBound = Math.max(lowerBound, neighbours.cardinality());
+            alive.clear(v);
+            if (neighbours.isEmpty()) {
+                continue;
+            }
+            int u = leastDegree(minor, neighbours);
+            BitSet merged = minor.get(u);
+            merged.or(neighbours);
+            merged.clear(u);
+            merged.clear(v);
+            for (int w = neighbours.nextSetBit(0); w >= 0; w = neighbours.nextSetBit(w + 1)) {
+                minor.get(w).clear(v);
+                if (w != u) {
+                    minor.get(w).set(u);
+                }
+            }
+        }
+        return lowerBound;
+    }
+
+    /**
+     * Find the variable of least degree in a set, the first one on ties.
+     *
+     * @param graph the graph.
+     * @param set   the variables to choose from.
+     * @return the id of the variable.
+     */
+    private static int leastDegree(ArrayList<BitSet> graph, BitSet set) {
+        int best = -1;
+        int bestDegree = Integer.MAX_VALUE;
+        for (int v = set.nextSetBit(0); v >= 0; v = set.nextSetBit(v + 1)) {
+            int degree = graph.get(v).cardinality();
+            if (degree < bestDegree) {
+                best = v;
+                bestDegree = degree;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Get the width of an order on the moral graph.
+     *
+     * @param order the ids of the variables, in elimination order.
+     * @return the largest number of neighbours a variable has when it is eliminated.
+     */
+    private int width(int[] order) {
+        ArrayList<BitSet> graph = copy(moralGraph);
+        int width = 0;
+        for (int v : order) {
+            width = Math.max(width, graph.get(v).cardinality());
+            eliminate(graph, v);
+        }
+        return width;
+    }
+
+    /**
+     * Eliminate a variable: link its neighbours to each other and take it out of the graph.
+     *
+     * @param graph the elimination graph.
+     * @param v     the id of the variable.
+     */
+    private static void eliminate(ArrayList<BitSet> graph, int v) {
+        BitSet neighbours = graph.get(v);
+        for (int u = neighbours.nextSetBit(0); u >= 0; u = neighbours.nextSetBit(u + 1)) {
+            BitSet adjacent = graph.get(u);
+            adjacent.or(neighbours);
+            adjacent.clear(u);
+            adjacent.clear(v);
+        }
+        graph.set(v, new BitSet());
+    }
+
+    /**
+     * Copy a graph.
+     *
+     * @param graph the graph.
+     * @return a deep copy.
+     */
+    private static ArrayList<BitSet> copy(ArrayList<BitSet> graph) {
+        ArrayList<BitSet> copy = new ArrayList<>(graph.size());
+        for (BitSet row : graph) {
+            copy.add((BitSet) row.clone());
+        }
+        return copy;
+    }
+
+    /**
+     * Describe the structure of a network: every node, its cardinality and its parents, each
+     * label prefixed by its length so no two structures give the same description. An order is
+     * only reused while the SHA-256 digest of this description stays the same.
+     *
+     * @param nodes the nodes of the network.
+     * @return the digest of the structure, in hexadecimal.
+     */
+    private static String structure(ArrayList<Node> nodes) {
+        StringBuilder structure = new StringBuilder();
+        for (Node node : nodes) {
+            appendLabel(structure, node).append(node.getCardinality()).append('<');
+            for (Node parent : node.getParents()) {
+                appendLabel(structure, parent);
+            }
+            structure.append(';');
+        }
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256")
+                    .digest(structure.toString().getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available.", e); // every Java platform must provide it.
+        }
+    }
+
+    /**
+     * Append a label to a structure description, prefixed by its length.
+     *
+     * @param structure the description.
+     * @param node      the node whose label is appended.
+     * @return the description.
+     */
+    private static StringBuilder appendLabel(StringBuilder structure, Node node) {
+        return structure.append(node.getLabel().length()).append(':').append(node.getLabel());
+    }
+
+    /**
+     * Read a file of saved orders.
+     *
+     * @param file the file.
+     * @return the saved orders, empty if the file does not exist.
+     */
+    private static Properties read(File file) {
+        Properties orders = new Properties();
+        if (file.exists()) {
+            try (InputStream in = new FileInputStream(file)) {
+                orders.load(in);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not read the orders in " + file + ".", e);
+            }
+        }
+        return orders;
+    }
+}
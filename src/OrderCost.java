@@ -0,0 +1,84 @@
+/**
+ * The predicted cost of running variable elimination with a given order: the size of the
+ * largest factor it creates, the number of multiply-adds its products and sums take, and the
+ * largest number of values held at once. Sizes are kept as doubles, as a bad order can create
+ * factors with more entries than a long can count.
+ *
+ * @author: 210017984
+ */
+public class OrderCost implements Comparable<OrderCost> {
+
+    // initialise variables.
+    private double maxFactorSize;
+    private double multiplyAdds;
+    private double peakMemory;
+
+    /**
+     * Create a new cost.
+     *
+     * @param maxFactorSize the number of entries of the largest factor.
+     * @param multiplyAdds  the number of multiply-adds.
+     * @param peakMemory    the largest number of factor values held at once.
+     */
+    public OrderCost(double maxFactorSize, double multiplyAdds, double peakMemory) {
+        this.maxFactorSize = maxFactorSize;
+        this.multiplyAdds = multiplyAdds;
+        this.peakMemory = peakMemory;
+    }
+
+    /**
+     * Get the number of entries of the largest factor.
+     *
+     * @return the size of the largest factor.
+     */
+    public double getMaxFactorSize() {
+        return maxFactorSize;
+    }
+
+    /**
+     * Get the number of multiply-adds.
+     *
+     * @return the number of multiply-adds.
+     */
+    public double getMultiplyAdds() {
+        return multiplyAdds;
+    }
+
+    /**
+     * Get the largest number of factor values held at once.
+     *
+     * @return the peak memory, in values.
+     */
+    public double getPeakMemory() {
+        return peakMemory;
+    }
+
+    /**
+     * Compare by multiply-adds, then by the largest factor, then by peak memory.
+     *
+     * @param other the other cost.
+     * @return negative if this cost is cheaper.
+     */
+    @Override
+    public int compareTo(OrderCost other) {
+        int compare = Double.compare(multiplyAdds, other.multiplyAdds);
+        if (compare == 0) {
+            compare = Double.compare(maxFactorSize, other.maxFactorSize);
+        }
+        if (compare == 0) {
+            compare = Double.compare(peakMemory, other.peakMemory);
+        }
+        return compare;
+    }
+
+    /**
+     * Prints the cost to a String.
+     *
+     * @return the cost as a string.
+     */
+    @Override
+    public String toString() {
+        return String.format("max factor size %.0f, multiply-adds %.0f, peak memory %.0f values",
+                maxFactorSize, multiplyAdds, peakMemory);
+    }
+}
@@ -1,167 +1,409 @@
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
-import java.util.Map;
 
 public class Ordering {
+
+    // the heuristics of the elimination graph search.
+    static final int MIN_DEGREE = 0;
+    static final int MIN_FILL = 1;
+    static final int WEIGHTED_MIN_FILL = 2;
+
     ArrayList<Node> nodes;
     ArrayList<Edge> edges;
+    MoralGraph graph; // the integer-indexed moral graph the searches run on.
+    HashMap<String, Node> labels = new HashMap<>(); // the nodes by upper-case label.
 
     public Ordering(ArrayList<Node> nodes, ArrayList<Edge> edges) {
         this.nodes = nodes;
         this.edges = edges;
+        this.graph = new MoralGraph(nodes);
+        indexLabels();
+    }
+
+    /**
+     * Create the orderings of a network, sharing the moral graph the network keeps.
+     * @param bn the Bayesian network.
+     */
+    public Ordering(BayesianNetwork bn) {
+        this.nodes = bn.getNodes();
+        this.edges = bn.getEdges();
+        this.graph = bn.getMoralGraph();
+        indexLabels();
+    }
+
+    /**
+     * Index the nodes by label, so looking a node up does not scan the network.
+     */
+    private void indexLabels() {
+        for (Node node : nodes) {
+            labels.putIfAbsent(node.getLabel().toUpperCase(), node);
+        }
     }
 
     /**
-     * The maximum cardinality search algorithm for deciding order.
+     * The maximum cardinality search algorithm for deciding order. The queried node is visited
+     * first, then always the node with the most visited neighbours; eliminating in the reverse
+     * order leaves the queried node last.
      * @param queriedLabel the label of the queried label.
      * @return the best visiting order derived with this algorithm.
      */
     public String[] maximumCardinalitySearch(String queriedLabel) {
-        // we are using the bayesian network as an undirected graph as we are working with neighbours, not children
-        // and parents. Here there is no point in using a temporary BN as we are not adding new edges.
-        Node queried = getNode(queriedLabel); // get queried node.
-        ArrayList<Node> unmarked = new ArrayList<>(nodes);
-        ArrayList<Node> marked = new ArrayList<>();
-        ArrayList<String> order = new ArrayList<>(); // store the order.
+        int[] visit = maximumCardinalityVisit(getNode(queriedLabel).getId());
+        String[] order = new String[visit.length - 1];
+        // reverse order, without the queried label which was visited first.
+        for (int i = 1; i < visit.length; i++) {
+            order[visit.length - 1 - i] = nodes.get(visit[i]).getLabel();
+        }
+        return order;
+    }
+
+    /**
+     * Maximum cardinality search in linear time. The unvisited nodes sit in buckets by their
+     * number of visited neighbours, each bucket a doubly linked list, so a node moves up a
+     * bucket in O(1) when a neighbour is visited. The highest non-empty bucket only drops by
+     * one when a node is visited, so finding it is O(1) amortised, and the whole search takes
+     * O(nodes + edges).
+     * @param start the id of the node visited first.
+     * @return the ids of the nodes, in visiting order.
+     */
+    int[] maximumCardinalityVisit(int start) {
+        int numberOfNodes = nodes.size();
+        int[] count = new int[numberOfNodes]; // the number of visited neighbours.
+        int[] head = new int[numberOfNodes + 1]; // the first node of each bucket.
+        int[] next = new int[numberOfNodes];
+        int[] previous = new int[numberOfNodes];
+        boolean[] visited = new boolean[numberOfNodes];
+        Arrays.fill(head, -1);
+        // every node starts in bucket 0, the first node at its head.
+        for (int v = numberOfNodes - 1; v >= 0; v--) {
+            pushBucket(v, 0, head, next, previous);
+        }
 
-        // the queried node is the starting node.
-        marked.add(queried);
+        int[] visit = new int[numberOfNodes];
+        int highest = 0;
+        for (int i = 0; i < numberOfNodes; i++) {
+            int v;
+            if (i == 0) {
+                v = start;
+            } else {
+                while (head[highest] == -1) {
+                    highest--;
+                }
+                v = head[highest];
+            }
+            removeBucket(v, count[v], head, next, previous);
+            visited[v] = true;
+            visit[i] = v;
 
-        // iterate through all the network's nodes and mark every time the label with the maximum marked neighbours.
-        for (int i = 0; i < nodes.size(); i++) {
-            Node labelWithMaxMarkedNeighbours = findMaximumNumberOfMarkedNeighbours(unmarked, marked);
-            order.add(labelWithMaxMarkedNeighbours.getLabel());
-            unmarked.remove(labelWithMaxMarkedNeighbours); // remove label with maximum number of marked neighbours from unmarked.
-            marked.add(labelWithMaxMarkedNeighbours); // add label to the marked list.
+            // every unvisited neighbour moves up a bucket.
+            for (int u : graph.getNeighbours(v)) {
+                if (!visited[u]) {
+                    removeBucket(u, count[u], head, next, previous);
+                    count[u]++;
+                    pushBucket(u, count[u], head, next, previous);
+                    highest = Math.max(highest, count[u]);
+                }
+            }
         }
-        Collections.reverse(order); // reverse order
-        order.remove(queriedLabel); // remove queried label from the order list.
+        return visit;
+    }
 
-        return order.toArray(new String[order.size()]);
+    /**
+     * Check whether the moral graph is chordal, so it needs no fill edges to triangulate.
+     * @return true if the moral graph is chordal.
+     */
+    public boolean isChordal() {
+        return nodes.isEmpty() || perfectEliminationOrdering() != null;
     }
 
     /**
-     * Find the node with the maximum number of marked neighbours.
-     * @param unmarked
-     * @param marked
-     * @return
+     * Find a perfect elimination ordering of the moral graph: an order in which the neighbours
+     * a node has when it is eliminated are all linked already, so eliminating adds no fill
+     * edges. The reverse of a maximum cardinality search is one exactly when the graph is
+     * chordal (Tarjan and Yannakakis, 1984), which is checked with one pass over the edges:
+     * the neighbours visited before a node, bar the last one of them, must be neighbours of
+     * that last one.
+     * @return the perfect elimination ordering, or null if the moral graph is not chordal.
      */
-    public Node findMaximumNumberOfMarkedNeighbours(ArrayList<Node> unmarked, ArrayList<Node> marked) {
-        HashMap<Node, Integer> map = new HashMap<>(); // create a new map to store the results.
+    public String[] perfectEliminationOrdering() {
+        int numberOfNodes = nodes.size();
+        if (numberOfNodes == 0) {
+            return new String[0];
+        }
+        int[] visit = maximumCardinalityVisit(0);
+        int[] position = new int[numberOfNodes];
+        for (int i = 0; i < numberOfNodes; i++) {
+            position[visit[i]] = i;
+        }
+
+        for (int i = 0; i < numberOfNodes; i++) {
+            int[] neighbours = graph.getNeighbours(visit[i]);
+            // the neighbour visited last before this node.
+            int last = -1;
+            for (int u : neighbours) {
+                if (position[u] < i && (last == -1 || position[u] > position[last])) {
+                    last = u;
+                }
+            }
+            for (int u : neighbours) {
+                if (position[u] < i && u != last && !graph.isAdjacent(u, last)) {
+                    return null;
+                }
+            }
+        }
+
+        String[] order = new String[numberOfNodes];
+        for (int i = 0; i < numberOfNodes; i++) {
+            order[numberOfNodes - 1 - i] = nodes.get(visit[i]).getLabel();
+        }
+        return order;
+    }
 
-        for (Node node : unmarked) {
-            ArrayList<Node> allNeighbours = node.getAllNeighbours(); // Get all the neighbours of the node.
-            allNeighbours.retainAll(marked); // Retain all the neighbours that are marked.
-            map.put(node, allNeighbours.size());  // Store the number of marked neighbours as the map entry value.
+    /**
+     * Put a node at the head of a bucket.
+     * @param v the id of the node.
+     * @param bucket the bucket.
+     * @param head the first node of each bucket.
+     * @param next the node after each node in its bucket.
+     * @param previous the node before each node in its bucket.
+     */
+    private static void pushBucket(int v, int bucket, int[] head, int[] next, int[] previous) {
+        previous[v] = -1;
+        next[v] = head[bucket];
+        if (head[bucket] != -1) {
+            previous[head[bucket]] = v;
         }
-        // return the string (label) in the hashmap with the maximum key value (marked neighbours)
-        return Collections.max(map.entrySet(), Map.Entry.comparingByValue()).getKey();
+        head[bucket] = v;
     }
 
+    /**
+     * Take a node out of its bucket.
+     * @param v the id of the node.
+     * @param bucket the bucket it is in.
+     * @param head the first node of each bucket.
+     * @param next the node after each node in its bucket.
+     * @param previous the node before each node in its bucket.
+     */
+    private static void removeBucket(int v, int bucket, int[] head, int[] next, int[] previous) {
+        if (previous[v] != -1) {
+            next[previous[v]] = next[v];
+        } else {
+            head[bucket] = next[v];
+        }
+        if (next[v] != -1) {
+            previous[next[v]] = previous[v];
+        }
+    }
 
     /**
-     * Greedy edge algorithm.
+     * Greedy edge algorithm, kept for the "greedy" option: the same as the min-degree search.
      * @param queriedLabel the label we are querying.
      * @return the best order derived
      */
     public String[] greedyMinEdgesSearch(String queriedLabel) {
-        // we are using the bayesian network as an undirected graph as we are working with neighbours, not children
-        // and parents. Here there is no point in using a temporary BN as we are not adding new edges.
-        ArrayList<Edge> undirectedGraph = new ArrayList<>(edges);
+        return minDegreeSearch(queriedLabel);
+    }
 
-        Node queried = getNode(queriedLabel); // get queried node.
-        ArrayList<Node> unmarked = new ArrayList<>(nodes);
-        ArrayList<Node> marked = new ArrayList<>();
-        ArrayList<String> order = new ArrayList<>(); // store the order.
+    /**
+     * The min-degree heuristic: repeatedly eliminate the variable with the fewest neighbours in
+     * the elimination graph.
+     * @param queriedLabel the label of the queried variable, which is never eliminated.
+     * @return the elimination order.
+     */
+    public String[] minDegreeSearch(String queriedLabel) {
+        return eliminationGraphSearch(queriedLabel, MIN_DEGREE);
+    }
 
-        // the queried node is the starting node.
-        marked.add(queried);
+    /**
+     * The min-fill heuristic: repeatedly eliminate the variable whose elimination adds the
+     * fewest fill edges to the elimination graph.
+     * @param queriedLabel the label of the queried variable, which is never eliminated.
+     * @return the elimination order.
+     */
+    public String[] minFillSearch(String queriedLabel) {
+        return eliminationGraphSearch(queriedLabel, MIN_FILL);
+    }
 
-        for (int i = 0; i < nodes.size(); i++) {
-            Node labelWithMinNeighbours = findNodeWithMinimumNeighbours(unmarked, marked);
-            order.add(labelWithMinNeighbours.getLabel());
-            unmarked.remove(labelWithMinNeighbours); // remove label with maximum number of marked neighbours from unmarked.
-            marked.add(labelWithMinNeighbours); // add label to the marked list.
+    /**
+     * The weighted min-fill heuristic: like min-fill, but every fill edge costs the product of
+     * the cardinalities of its two variables, that is the size of the table it adds.
+     * @param queriedLabel the label of the queried variable, which is never eliminated.
+     * @return the elimination order.
+     */
+    public String[] weightedMinFillSearch(String queriedLabel) {
+        return eliminationGraphSearch(queriedLabel, WEIGHTED_MIN_FILL);
+    }
 
-            // if i is not the last, then generate possible link pairs.
-            if (i != nodes.size()-1) {
-                generateLinksPossiblePairs(undirectedGraph, labelWithMinNeighbours.getAllNeighbours());
-            }
+    /**
+     * Search for an order of minimum width until a deadline, starting from the best greedy order.
+     * @param queriedLabel the label of the queried variable, which is never eliminated.
+     * @param budgetMillis the time allowed, in milliseconds.
+     * @return the best elimination order found.
+     */
+    public String[] optimalOrderSearch(String queriedLabel, long budgetMillis) {
+        return new OptimalOrderSearch(nodes, graph, getNode(queriedLabel)).search(budgetMillis);
+    }
 
+    /**
+     * Eliminate every variable of the moral graph but the queried one with a heuristic.
+     * @param queriedLabel the label of the queried variable, which is never eliminated.
+     * @param heuristic MIN_DEGREE, MIN_FILL or WEIGHTED_MIN_FILL.
+     * @return the elimination order.
+     */
+    private String[] eliminationGraphSearch(String queriedLabel, int heuristic) {
+        Node queried = getNode(queriedLabel); // get queried node.
+        ArrayList<BitSet> eliminationGraph = new ArrayList<>();
+        int[] cardinalities = new int[nodes.size()];
+        boolean[] eliminate = new boolean[nodes.size()];
+        for (int v = 0; v < nodes.size(); v++) {
+            eliminationGraph.add(graph.getNeighbourSet(v));
+            cardinalities[v] = nodes.get(v).getCardinality();
+            eliminate[v] = v != queried.getId();
         }
-        order.remove(queried.getLabel()); // remove queried label from the order list.
 
+        ArrayList<String> order = new ArrayList<>(); // store the order.
+        for (int v : eliminationOrder(eliminationGraph, cardinalities, eliminate, heuristic, null)) {
+            order.add(nodes.get(v).getLabel());
+        }
         return order.toArray(new String[order.size()]);
     }
 
     /**
-     * Find the node with the minimum number of neighbours.
-     * @param unmarked
-     * @param marked
-     * @return
+     * Eliminate variables of an elimination graph greedily, smallest score first. The scores are
+     * kept in an indexed priority queue and, after every elimination, only recomputed for the
+     * variables whose score can have changed: the neighbours of the eliminated variable and,
+     * for the fill heuristics, their neighbours too, as a fill edge between two variables
+     * changes the fill of every variable adjacent to both.
+     * @param eliminationGraph the neighbours of every variable, by id. It is consumed.
+     * @param cardinalities the cardinality of every variable.
+     * @param eliminate which variables to eliminate; the others stay in the graph.
+     * @param heuristic MIN_DEGREE, MIN_FILL or WEIGHTED_MIN_FILL.
+     * @param ranks breaks ties between equal scores, smaller rank first, or null to break them by id.
+     * @return the ids of the eliminated variables, in elimination order.
      */
-    public Node findNodeWithMinimumNeighbours(ArrayList<Node> unmarked, ArrayList<Node> marked) {
-        HashMap<Node, Integer> map = new HashMap<>(); // create a new map to store the results.
-        // Iterate through the unmarked neighbours.
-        for (Node node : unmarked) {
-            ArrayList<Node> allNeighbours = node.getAllNeighbours(); // Get all the neighbours of the node.
-            map.put(node, allNeighbours.size());  // Store the number of marked neighbours as the map entry value.
+    static int[] eliminationOrder(ArrayList<BitSet> eliminationGraph, int[] cardinalities, boolean[] eliminate,
+                                  int heuristic, int[] ranks) {
+        int numberOfVariables = eliminationGraph.size();
+        BitSet scratch = new BitSet(numberOfVariables);
+
+        // score every variable to eliminate.
+        IndexedPriorityQueue queue = new IndexedPriorityQueue(numberOfVariables);
+        for (int v = 0; v < numberOfVariables; v++) {
+            if (eliminate[v]) {
+                queue.put(v, priority(eliminationGraph, cardinalities, v, heuristic, ranks, scratch));
+            }
         }
-        // return the string (label) in the hashmap with the minimum key value (marked neighbours).
-        return Collections.min(map.entrySet(), Map.Entry.comparingByValue()).getKey();
-    }
 
+        int[] order = new int[queue.size()];
+        int position = 0;
+        boolean[] affected = new boolean[numberOfVariables];
+        while (!queue.isEmpty()) {
+            int eliminated = queue.poll();
+            order[position++] = eliminated;
+
+            // connect the neighbours into a clique and take the variable out of the graph.
+            BitSet neighbours = eliminationGraph.get(eliminated);
+            for (int first = neighbours.nextSetBit(0); first >= 0; first = neighbours.nextSetBit(first + 1)) {
+                BitSet adjacent = eliminationGraph.get(first);
+                adjacent.or(neighbours);
+                adjacent.clear(first);
+                adjacent.clear(eliminated);
+            }
+            eliminationGraph.set(eliminated, new BitSet());
+
+            // rescore the variables whose score can have changed.
+            ArrayList<Integer> rescore = new ArrayList<>();
+            for (int neighbour = neighbours.nextSetBit(0); neighbour >= 0; neighbour = neighbours.nextSetBit(neighbour + 1)) {
+                markAffected(neighbour, affected, rescore);
+                if (heuristic != MIN_DEGREE) {
+                    BitSet second = eliminationGraph.get(neighbour);
+                    for (int v = second.nextSetBit(0); v >= 0; v = second.nextSetBit(v + 1)) {
+                        markAffected(v, affected, rescore);
+                    }
+                }
+            }
+            for (int v : rescore) {
+                affected[v] = false;
+                if (queue.contains(v)) {
+                    queue.put(v, priority(eliminationGraph, cardinalities, v, heuristic, ranks, scratch));
+                }
+            }
+        }
+        return order;
+    }
 
     /**
-     * Generate all the links for the possible pairs.
-     * @param undirected
-     * @param neighbours
+     * Get the priority of a variable in the queue: its score, with ties broken by rank.
+     * @param eliminationGraph the neighbours of every variable.
+     * @param cardinalities the cardinality of every variable.
+     * @param v the id of the variable.
+     * @param heuristic MIN_DEGREE, MIN_FILL or WEIGHTED_MIN_FILL.
+     * @param ranks the rank of every variable, or null.
+     * @param scratch a bit set to work in.
+     * @return the priority, smaller first.
      */
-    public void generateLinksPossiblePairs(ArrayList<Edge> undirected, ArrayList<Node> neighbours) {
-        for (int i=0; i<neighbours.size();i++) {
-            for (int x=1; x<neighbours.size()-1; x++) {
-                Node first = neighbours.get(i);
-                Node second = neighbours.get(x);
+    private static long priority(ArrayList<BitSet> eliminationGraph, int[] cardinalities, int v, int heuristic,
+                                 int[] ranks, BitSet scratch) {
+        long score = score(eliminationGraph, cardinalities, v, heuristic, scratch);
+        return ranks == null ? score : score * ranks.length + ranks[v];
+    }
 
-                // if the graph does not contain a link between the two parents already, create one.
-                if (!(containEdge(undirected, first, second))) {
-                    System.out.println("ADDING EDGE: nei i:"+neighbours.get(i)+" nei x:"+ neighbours.get(x));
-                    // ordering does not matter here! we are working with the neighbours of a node.
-                    Edge newEdge = new Edge(first,second);
-                    undirected.add(newEdge);
+    /**
+     * Score a variable of the elimination graph. The fill edges are counted a word at a time,
+     * as the neighbours of the variable missing from the neighbourhood of each neighbour.
+     * @param eliminationGraph the neighbours of every variable.
+     * @param cardinalities the cardinality of every variable.
+     * @param v the id of the variable.
+     * @param heuristic MIN_DEGREE, MIN_FILL or WEIGHTED_MIN_FILL.
+     * @param scratch a bit set to work in.
+     * @return the number of neighbours, or the (weighted) number of fill edges its elimination adds.
+     */
+    static long score(ArrayList<BitSet> eliminationGraph, int[] cardinalities, int v, int heuristic,
+                              BitSet scratch) {
+        BitSet neighbours = eliminationGraph.get(v);
+        if (heuristic == MIN_DEGREE) {
+            return neighbours.cardinality();
+        }
+        long fill = 0;
+        for (int first = neighbours.nextSetBit(0); first >= 0; first = neighbours.nextSetBit(first + 1)) {
+            // the neighbours after this one that it is not linked to.
+            scratch.clear();
+            scratch.or(neighbours);
+            scratch.andNot(eliminationGraph.get(first));
+            scratch.clear(0, first + 1);
+            if (heuristic == WEIGHTED_MIN_FILL) {
+                long cardinality = cardinalities[first];
+                for (int second = scratch.nextSetBit(0); second >= 0; second = scratch.nextSetBit(second + 1)) {
+                    fill += cardinality * cardinalities[second];
                 }
+            } else {
+                fill += scratch.cardinality();
             }
         }
+        return fill;
     }
 
     /**
-     * Get a specific node.
-     * @param nodeLabel
-     * @return
+     * Add a variable to the ones to rescore, once.
+     * @param v the position of the variable.
+     * @param affected whether each variable is already to be rescored.
+     * @param rescore the variables to rescore.
      */
-    public Node getNode(String nodeLabel) {
-        for (Node node : nodes) {
-            if (node.getLabel().equalsIgnoreCase(nodeLabel)) {
-                return node;
-            }
+    private static void markAffected(int v, boolean[] affected, ArrayList<Integer> rescore) {
+        if (!affected[v]) {
+            affected[v] = true;
+            rescore.add(v);
         }
-        return null;
     }
 
     /**
-     * Whether it contains an edge.
-     * @param edgesIn
-     * @param first
-     * @param second
+     * Get a specific node.
+     * @param nodeLabel
      * @return
      */
-    public boolean containEdge(ArrayList<Edge> edgesIn, Node first, Node second) {
-        for (Edge edge : edgesIn) {
-            if ((edge.getFirst().getLabel().equals(first.getLabel()) && edge.getSecond().getLabel().equals(second.getLabel())) || (edge.getFirst().getLabel().equals(second.getLabel()) && edge.getSecond().getLabel().equals(first.getLabel()))) {
-                return true;
-            }
-        }
-        return false;
+    public Node getNode(String nodeLabel) {
+        return labels.get(nodeLabel.toUpperCase());
     }
 }
@@ -0,0 +1,397 @@
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+/**
+ * Chooses an elimination order for one query by predicting the cost of candidate orders.
+ * The network is first pruned to the requisite nodes of the query with Bayes-ball, and the
+ * evidence is taken out of their CPTs, so the candidates are built and costed on the factors
+ * variable elimination will actually see. The candidates come from min-degree, min-fill,
+ * weighted min-fill and maximum cardinality search, and then from restarts of the first three
+ * with random tie-breaking, run in parallel until a time budget runs out or a run of restarts
+ * stops finding orders not seen before. With a seed set, a fixed number of restarts runs instead,
+ * so the result does not depend on timing. The cheapest order is kept, together with its
+ * predicted cost; among orders of equal cost, the earliest candidate wins.
+ *
+ * @author: 210017984
+ */
+public class OrderingOptimiser {
+
+    // time spent on randomised restarts by default, in milliseconds.
+    public static final long DEFAULT_BUDGET_MILLIS = 100;
+
+    // number of restarts run when a seed is set.
+    public static final int DEFAULT_RESTARTS = 64;
+
+    // restarts in a row that find no new order before the search gives up early.
+    public static final int STALE_RESTARTS = 32;
+
+    // networks with fewer variables to eliminate are searched on one thread, as forking costs more than it saves.
+    public static final int PARALLEL_THRESHOLD = 64;
+
+    // the heuristics the restarts cycle through.
+    private static final int[] HEURISTICS = {Ordering.MIN_FILL, Ordering.WEIGHTED_MIN_FILL, Ordering.MIN_DEGREE};
+
+    // initialise variables.
+    private BayesianNetwork bn;
+    private String queried;
+    private int numberOfNodes;
+    private int[] cardinalities;
+    private boolean[] eliminate; // the requisite hidden variables, the only ones VE eliminates.
+    private ArrayList<BitSet> scopes = new ArrayList<>(); // the variables of every factor, after the evidence.
+    private long seed = System.nanoTime();
+    private boolean seeded = false; // whether a fixed number of restarts runs.
+    private int restarts = DEFAULT_RESTARTS;
+    private HashMap<String, OrderCost> seen = new HashMap<>(); // the cost of every order already seen.
+    private int staleRestarts = 0; // the restarts in a row that found no new order.
+    private int bestCandidate; // the index of the best candidate, the earliest among equal costs.
+    private String[] bestOrder;
+    private OrderCost bestCost;
+    private int candidates = 0;
+
+    /**
+     * Prepare the optimisation of an order for a query.
+     *
+     * @param bn       the Bayesian network.
+     * @param queried  the label of the queried variable.
+     * @param evidence the evidence, as pairs of variable label and observed value.
+     */
+    public OrderingOptimiser(BayesianNetwork bn, String queried, ArrayList<String[]> evidence) {
+        this.bn = bn;
+        this.queried = queried;
+        this.numberOfNodes = bn.getNodes().size();
+        this.cardinalities = new int[numberOfNodes];
+        for (Node node : bn.getNodes()) {
+            cardinalities[node.getId()] = node.getCardinality();
+        }
+
+        ArrayList<Node> observed = new ArrayList<>();
+        boolean[] isObserved = new boolean[numberOfNodes];
+        if (evidence != null) {
+            for (String[] ev : evidence) {
+                Node node = bn.getNode(ev[0]);
+                observed.add(node);
+                isObserved[node.getId()] = true;
+            }
+        }
+
+        // the scopes of the requisite CPTs, without the observed variables.
+        Node queriedNode = bn.getNode(queried);
+        this.eliminate = new boolean[numberOfNodes];
+        for (Node node : new BayesBall(bn, queriedNode, observed).getRequisite()) {
+            BitSet scope = new BitSet(numberOfNodes);
+            scope.set(node.getId());
+            for (Node parent : node.getParents()) {
+                scope.set(parent.getId());
+            }
+            for (int v = scope.nextSetBit(0); v >= 0; v = scope.nextSetBit(v + 1)) {
+                if (isObserved[v]) {
+                    scope.clear(v);
+                } else if (v != queriedNode.getId()) {
+                    eliminate[v] = true;
+                }
+            }
+            scopes.add(scope);
+        }
+    }
+
+    /**
+     * Set the seed of the randomised restarts. The optimisation then runs a fixed number of
+     * restarts instead of running until its budget, so the same seed always gives the same order.
+     *
+     * @param seed the seed.
+     */
+    public void setSeed(long seed) {
+        this.seed = seed;
+        this.seeded = true;
+    }
+
+    /**
+     * Set the number of restarts run when a seed is set.
+     *
+     * @param restarts the number of restarts.
+     */
+    public void setRestarts(int restarts) {
+        this.restarts = restarts;
+    }
+
+    /**
+     * Find the cheapest order within DEFAULT_BUDGET_MILLIS.
+     *
+     * @return the elimination order of the requisite hidden variables.
+     */
+    public String[] optimise() {
+        return optimise(DEFAULT_BUDGET_MILLIS);
+    }
+
+    /**
+     * Find the cheapest order: every heuristic is tried once, then randomised restarts run on
+     * every core until the budget runs out or STALE_RESTARTS restarts in a row find no new order.
+     * With a seed set, exactly the set number of restarts runs and the budget is not used.
+     *
+     * @param budgetMillis the time allowed for the randomised restarts, in milliseconds.
+     * @return the elimination order of the requisite hidden variables.
+     */
+    public String[] optimise(long budgetMillis) {
+        bestOrder = null;
+        bestCost = null;
+        candidates = 0;
+        seen.clear();
+        staleRestarts = 0;
+
+        int variables = 0;
+        for (boolean hidden : eliminate) {
+            variables += hidden ? 1 : 0;
+        }
+        boolean parallel = variables >= PARALLEL_THRESHOLD;
+
+        // the heuristics as they are, including maximum cardinality search on the whole network.
+        range(HEURISTICS.length + 1, parallel).forEach(h -> {
+            if (h < HEURISTICS.length) {
+                offer(h, search(HEURISTICS[h], null));
+            } else {
+                offer(h, toIds(new Ordering(bn).maximumCardinalitySearch(queried)));
+            }
+        });
+
+        // then randomised tie-breaking, each restart with its own random ranks.
+        int first = HEURISTICS.length + 1;
+        if (seeded) {
+            range(restarts, parallel).forEach(restart -> offer(first + restart, restart(restart)));
+            return bestOrder;
+        }
+        long deadline = System.nanoTime() + budgetMillis * 1000000L;
+        AtomicInteger next = new AtomicInteger();
+        range(parallel ? Runtime.getRuntime().availableProcessors() : 1, parallel).forEach(worker -> {
+            while (System.nanoTime() < deadline && !isStale()) {
+                int restart = next.getAndIncrement();
+                offer(first + restart, restart(restart));
+            }
+        });
+        return bestOrder;
+    }
+
+    /**
+     * Get the predicted cost of the order the last optimisation returned.
+     *
+     * @return the cost of the best order.
+     */
+    public OrderCost getCost() {
+        return bestCost;
+    }
+
+    /**
+     * Get the number of distinct candidate orders the last optimisation costed.
+     *
+     * @return the number of candidates.
+     */
+    public int getCandidatesEvaluated() {
+        return candidates;
+    }
+
+    /**
+     * Predict the cost of eliminating the variables of the query in a given order. Variables
+     * VE would not eliminate are skipped, and any the order leaves out are summed out with the
+     * queried variable's final product.
+     *
+     * @param order the elimination order.
+     * @return the predicted cost.
+     */
+    public OrderCost estimateCost(String[] order) {
+        return estimateCost(toIds(order));
+    }
+
+    /**
+     * Predict the cost of an order of ids. Eliminating a variable multiplies the k factors that
+     * contain it into a table over the union of their scopes, k multiply-adds per entry, and
+     * sums the variable out of it; the memory held is every factor still alive.
+     *
+     * @param order the ids of the variables, in elimination order.
+     * @return the predicted cost.
+     */
+    private OrderCost estimateCost(int[] order) {
+        ArrayList<BitSet> factors = new ArrayList<>(scopes);
+        double live = 0;
+        for (BitSet scope : factors) {
+            live += size(scope);
+        }
+        double maxFactorSize = 0;
+        double multiplyAdds = 0;
+        double peakMemory = live;
+        boolean[] done = new boolean[numberOfNodes];
+
+        for (int v : order) {
+            if (!eliminate[v] || done[v]) {
+                continue;
+            }
+            done[v] = true;
+            BitSet union = new BitSet(numberOfNodes);
+            int joined = 0;
+            for (int i = factors.size() - 1; i >= 0; i--) {
+                if (factors.get(i).get(v)) {
+                    BitSet scope = factors.remove(i);
+                    union.or(scope);
+                    live -= size(scope);
+                    joined++;
+                }
+            }
+            if (joined == 0) {
+                continue;
+            }
+            double productSize = size(union);
+            multiplyAdds += productSize * joined;
+            union.clear(v);
+            double resultSize = productSize / cardinalities[v];
+            maxFactorSize = Math.max(maxFactorSize, Math.max(productSize, resultSize));
+            live += resultSize;
+            peakMemory = Math.max(peakMemory, live);
+            factors.add(union);
+        }
+
+        // the final product over what is left.
+        BitSet union = new BitSet(numberOfNodes);
+        for (BitSet scope : factors) {
+            union.or(scope);
+        }
+        double productSize = size(union);
+        multiplyAdds += productSize * factors.size();
+        maxFactorSize = Math.max(maxFactorSize, productSize);
+        return new OrderCost(maxFactorSize, multiplyAdds, peakMemory);
+    }
+
+    /**
+     * Run a heuristic on the interaction graph of the pruned, sliced factors.
+     *
+     * @param heuristic the heuristic of the elimination graph search.
+     * @param ranks     breaks ties, or null to break them by id.
+     * @return the ids of the variables, in elimination order.
+     */
+    private int[] search(int heuristic, int[] ranks) {
+        ArrayList<BitSet> eliminationGraph = new ArrayList<>();
+        for (int v = 0; v < numberOfNodes; v++) {
+            eliminationGraph.add(new BitSet(numberOfNodes));
+        }
+        for (BitSet scope : scopes) {
+            for (int v = scope.nextSetBit(0); v >= 0; v = scope.nextSetBit(v + 1)) {
+                eliminationGraph.get(v).or(scope);
+                eliminationGraph.get(v).clear(v);
+            }
+        }
+        return Ordering.eliminationOrder(eliminationGraph, cardinalities, eliminate, heuristic, ranks);
+    }
+
+    /**
+     * Get the numbers from 0 to a bound, as a parallel stream if asked.
+     *
+     * @param bound    the bound, excluded.
+     * @param parallel whether the stream is parallel.
+     * @return the stream.
+     */
+    private static IntStream range(int bound, boolean parallel) {
+        IntStream range = IntStream.range(0, bound);
+        return parallel ? range.parallel() : range;
+    }
+
+    /**
+     * Run one randomised restart.
+     *
+     * @param restart the number of the restart, which picks its heuristic and seeds its ranks.
+     * @return the ids of the variables, in elimination order.
+     */
+    private int[] restart(int restart) {
+        Random random = new Random(seed + restart);
+        return search(HEURISTICS[restart % HEURISTICS.length], randomRanks(random));
+    }
+
+    /**
+     * Check whether the last restarts stopped finding new orders.
+     *
+     * @return true if STALE_RESTARTS restarts in a row found no new order.
+     */
+    private synchronized boolean isStale() {
+        return staleRestarts >= STALE_RESTARTS;
+    }
+
+    /**
+     * Cost a candidate order and keep it if it is the cheapest so far.
+     *
+     * @param candidate the index of the candidate, earlier candidates win ties.
+     * @param order     the ids of the variables, in elimination order.
+     */
+    private void offer(int candidate, int[] order) {
+        ArrayList<String> labels = new ArrayList<>();
+        for (int v : order) {
+            if (eliminate[v]) {
+                labels.add(bn.getNodes().get(v).getLabel());
+            }
+        }
+        String key = String.join(",", labels);
+        OrderCost cost;
+        synchronized (this) {
+            cost = seen.get(key);
+            staleRestarts = cost == null ? 0 : staleRestarts + 1;
+        }
+        if (cost == null) {
+            cost = estimateCost(order);
+        }
+        synchronized (this) {
+            if (seen.putIfAbsent(key, cost) == null) {
+                candidates++;
+            }
+            // an order seen again still competes, so ties go to the earliest candidate whatever finishes first.
+            int compare = bestCost == null ? -1 : cost.compareTo(bestCost);
+            if (compare < 0 || (compare == 0 && candidate < bestCandidate)) {
+                bestCost = cost;
+                bestCandidate = candidate;
+                bestOrder = labels.toArray(new String[labels.size()]);
+            }
+        }
+    }
+
+    /**
+     * Get a random permutation of the node ids, to break ties with.
+     *
+     * @param random the source of randomness.
+     * @return the rank of every node.
+     */
+    private int[] randomRanks(Random random) {
+        int[] ranks = new int[numberOfNodes];
+        for (int i = 0; i < numberOfNodes; i++) {
+            int j = random.nextInt(i + 1);
+            ranks[i] = ranks[j];
+            ranks[j] = i;
+        }
+        return ranks;
+    }
+
+    /**
+     * Get the ids of an order of labels.
+     *
+     * @param order the labels.
+     * @return the ids.
+     */
+    private int[] toIds(String[] order) {
+        int[] ids = new int[order.length];
+        for (int i = 0; i < order.length; i++) {
+            ids[i] = bn.getNode(order[i]).getId();
+        }
+        return ids;
+    }
+
+    /**
+     * Get the number of entries of a table over some variables.
+     *
+     * @param scope the variables.
+     * @return the product of their cardinalities.
+     */
+    private double size(BitSet scope) {
+        double size = 1;
+        for (int v = scope.nextSetBit(0); v >= 0; v = scope.nextSetBit(v + 1)) {
+            size *= cardinalities[v];
+        }
+        return size;
+    }
+}
@@ -0,0 +1,195 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.function.DoubleSupplier;
+
+/**
+ * A bounded, thread-safe cache of posterior probabilities for one Bayesian network. Results
+ * are keyed by a canonical form of the query (the inference method, the queried variable and
+ * value, and the evidence as a set), the least recently used result is evicted once the cache
+ * is full, and the whole cache is dropped as soon as the network's version changes - that is,
+ * when a CPT is updated or a node or edge is added.
+ *
+ * @author: 210017984
+ */
+public class PosteriorCache {
+
+    // number of results kept by default.
+    public static final int DEFAULT_MAX_ENTRIES = 1024;
+
+    // initialise variables.
+    private BayesianNetwork bn;
+    private LinkedHashMap<String, Double> results; // in access order, least recently used first.
+    private long networkVersion; // the network version the cached results were computed at.
+    private long hits = 0;
+    private long misses = 0;
+    private long invalidations = 0;
+
+    /**
+     * Create a cache holding up to DEFAULT_MAX_ENTRIES results.
+     *
+     * @param bn the Bayesian network the results are computed on.
+     */
+    public PosteriorCache(BayesianNetwork bn) {
+        this(bn, DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * Create a cache holding up to a given number of results.
+     *
+     * @param bn         the Bayesian network the results are computed on.
+     * @param maxEntries the maximum number of results kept.
+     */
+    public PosteriorCache(BayesianNetwork bn, int maxEntries) {
+        this.bn = bn;
+        this.networkVersion = bn.getVersion();
+        this.results = new LinkedHashMap<String, Double>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Double> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Get P(queried=value|evidence) by variable elimination, from the cache if possible.
+     *
+     * @param queried  the label of the queried variable.
+     * @param value    the value of the queried variable.
+     * @param order    the elimination order, used if the result has to be computed.
+     * @param evidence the evidence, as pairs of variable label and observed value.
+     * @return the posterior probability.
+     */
+    public double runVE(String queried, String value, String[] order, ArrayList<String[]> evidence) {
+        return getOrCompute("VE", queried, value, evidence, () -> {
+            VariableElimination ve = new VariableElimination(bn, queried, order, evidence);
+            return ve.runVE(value, evidence != null && !evidence.isEmpty());
+        });
+    }
+
+    /**
+     * Get P(queried=value|evidence) by Gibbs sampling, from the cache if possible.
+     *
+     * @param queried  the label of the queried variable.
+     * @param value    the value of the queried variable.
+     * @param samples  the number of samples, used if the result has to be computed.
+     * @param evidence the evidence, as pairs of variable label and observed value.
+     * @return the estimated posterior probability.
+     */
+    public double gibbsAsk(String queried, String value, int samples, ArrayList<String[]> evidence) {
+        return getOrCompute("Gibbs" + samples, queried, value, evidence,
+                () -> new GibbsSampling(bn, queried, evidence).gibbsAsk(samples, value));
+    }
+
+    /**
+     * Get a cached result, or compute and cache it. The computation runs outside the lock, and
+     * its result is not cached if the network changed while it was running.
+     *
+     * @param method    the name of the inference method, so different methods never share results.
+     * @param queried   the label of the queried variable.
+     * @param value     the value of the queried variable.
+     * @param evidence  the evidence, as pairs of variable label and observed value.
+     * @param inference computes the result on a miss.
+     * @return the posterior probability.
+     */
+    public double getOrCompute(String method, String queried, String value, ArrayList<String[]> evidence,
+                               DoubleSupplier inference) {
+        String key = method + "|" + canonicalKey(queried, value, evidence);
+        long version;
+        synchronized (this) {
+            version = checkVersion();
+            Double cached = results.get(key);
+            if (cached != null) {
+                hits++;
+                return cached;
+            }
+            misses++;
+        }
+        double result = inference.getAsDouble();
+        synchronized (this) {
+            if (checkVersion() == version) {
+                results.put(key, result);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Build the canonical form of a query: labels and values in upper case, and the evidence
+     * sorted, so the same query always gets the same key whatever order the evidence comes in.
+     *
+     * @param queried  the label of the queried variable.
+     * @param value    the value of the queried variable.
+     * @param evidence the evidence, as pairs of variable label and observed value.
+     * @return the key of the query.
+     */
+    public static String canonicalKey(String queried, String value, ArrayList<String[]> evidence) {
+        TreeSet<String> observed = new TreeSet<>();
+        if (evidence != null) {
+            for (String[] ev : evidence) {
+                observed.add(ev[0].toUpperCase() + ":" + ev[1].toUpperCase());
+            }
+        }
+        return queried.toUpperCase() + ":" + value.toUpperCase() + "|" + String.join(" ", observed);
+    }
+
+    /**
+     * Drop every cached result.
+     */
+    public synchronized void clear() {
+        results.clear();
+    }
+
+    /**
+     * Get the number of results currently cached.
+     *
+     * @return the number of cached results.
+     */
+    public synchronized int size() {
+        return results.size();
+    }
+
+    /**
+     * Get the number of queries answered from the cache.
+     *
+     * @return the number of hits.
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * Get the number of queries that had to be computed.
+     *
+     * @return the number of misses.
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Get the number of times the cache was dropped because the network changed.
+     *
+     * @return the number of invalidations.
+     */
+    public synchronized long getInvalidations() {
+        return invalidations;
+    }
+
+    /**
+     * Drop the cached results if the network changed since they were computed. Must be
+     * called while holding the lock.
+     *
+     * @return the current network version.
+     */
+    private long checkVersion() {
+        long version = bn.getVersion();
+        if (version != networkVersion) {
+            results.clear();
+            networkVersion = version;
+            invalidations++;
+        }
+        return version;
+    }
+}
@@ -0,0 +1,508 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A variable elimination query compiled for a fixed query variable, set of observed variables
+ * and elimination order. Pruning, the choice of factors, the evidence slices and the shape and
+ * strides of every intermediate factor are resolved once when the plan is compiled; executing
+ * it with new evidence values only runs the kernels over buffers owned by the plan. A plan
+ * reuses its buffers, so it must only be executed by one thread at a time.
+ *
+ * @author: 210017984
+ */
+public class QueryPlan {
+
+    // number of evidence rows evaluated together by executeBatch.
+    public static final int BATCH_BLOCK = 256;
+
+    // initialise variables.
+    private Node queried;
+    private Node[] observed; // the observed nodes, in the order their values are given.
+    private Node[] sources; // the node whose CPT fills each initial slot.
+    private int[][] sliceOffsets; // for sliced slots, the CPT offset of each value with the evidence at zero.
+    private int[][] evidenceStrides; // for sliced slots, the CPT stride of each observed variable.
+    private double[][] slots; // the values of every initial and intermediate factor.
+    private int[][] stepInputs; // the slots multiplied by each step.
+    private int[][][] stepStrides; // the stride of every union variable in each input of a step.
+    private int[][] stepResultStrides; // the stride of every union variable in the result of a step.
+    private int[][] stepCardinalities; // the cardinality of every union variable of a step.
+    private int[] stepOutputs; // the slot each step writes to.
+
+    /**
+     * Compile a query plan. Only the requisite variables of the query are kept, and variables
+     * of the order that have nothing left to eliminate are skipped. The order itself is not
+     * modified.
+     *
+     * @param bn            the Bayesian network.
+     * @param queried       the label of the queried variable.
+     * @param evidenceLabels the labels of the observed variables.
+     * @param order         the elimination order.
+     */
+    public QueryPlan(BayesianNetwork bn, String queried, String[] evidenceLabels, String[] order) {
+        this.queried = bn.getNode(queried);
+        this.observed = new Node[evidenceLabels.length];
+        for (int e = 0; e < evidenceLabels.length; e++) {
+            observed[e] = bn.getNode(evidenceLabels[e]);
+            if (observed[e] == this.queried) {
+                throw new IllegalArgumentException("The queried variable " + queried + " cannot be observed.");
+            }
+        }
+
+        // the relevant nodes are the requisite nodes found by Bayes-ball.
+        ArrayList<Node> relevant = new BayesBall(bn, this.queried,
+                new ArrayList<>(Arrays.asList(observed))).getRequisite();
+        ArrayList<Node> toEliminate = new ArrayList<>();
+        for (String label : order) {
+            Node node = bn.getNode(label);
+            if (relevant.contains(node) && node != this.queried && !isObserved(node)) {
+                toEliminate.add(node);
+            }
+        }
+
+        // one initial slot for the CPT of every relevant node, sliced to the evidence.
+        ArrayList<int[]> scopes = new ArrayList<>();
+        ArrayList<Integer> sizes = new ArrayList<>();
+        sources = new Node[bn.getNodes().size()];
+        sliceOffsets = new int[sources.length][];
+        evidenceStrides = new int[sources.length][];
+        int numberOfSources = 0;
+        for (Node node : bn.getNodes()) {
+            if (!relevant.contains(node)) {
+                continue;
+            }
+            sources[numberOfSources] = node;
+            int[] scope = compileSlice(node, numberOfSources);
+            scopes.add(scope);
+            sizes.add(sizeOf(bn, scope));
+            numberOfSources++;
+        }
+        sources = Arrays.copyOf(sources, numberOfSources);
+        sliceOffsets = Arrays.copyOf(sliceOffsets, numberOfSources);
+        evidenceStrides = Arrays.copyOf(evidenceStrides, numberOfSources);
+
+        // eliminate the variables on the scopes only, recording every step.
+        ArrayList<Integer> live = new ArrayList<>();
+        for (int slot = 0; slot < numberOfSources; slot++) {
+            live.add(slot);
+        }
+        ArrayList<int[]> steps = new ArrayList<>();
+        for (Node node : toEliminate) {
+            ArrayList<Integer> inputs = new ArrayList<>();
+            for (Integer slot : live) {
+                if (indexOf(scopes.get(slot), node.getId()) != -1) {
+                    inputs.add(slot);
+                }
+            }
+            if (inputs.isEmpty()) {
+                continue;
+            }
+            live.removeAll(inputs);
+            live.add(scopes.size());
+            steps.add(inputs.stream().mapToInt(Integer::intValue).toArray());
+            scopes.add(remove(union(scopes, inputs), new int[]{node.getId()}));
+            sizes.add(sizeOf(bn, scopes.get(scopes.size() - 1)));
+        }
+
+        // the last step joins what is left and sums out everything but the queried variable.
+        steps.add(live.stream().mapToInt(Integer::intValue).toArray());
+        scopes.add(new int[]{this.queried.getId()});
+        sizes.add(this.queried.getCardinality());
+
+        // resolve the strides of every step, and allocate every slot once.
+        int numberOfSteps = steps.size();
+        stepInputs = new int[numberOfSteps][];
+        stepStrides = new int[numberOfSteps][][];
+        stepResultStrides = new int[numberOfSteps][];
+        stepCardinalities = new int[numberOfSteps][];
+        stepOutputs = new int[numberOfSteps];
+        for (int s = 0; s < numberOfSteps; s++) {
+            int[] inputs = steps.get(s);
+            int output = numberOfSources + s;
+            int[] unionVariables = union(scopes, toList(inputs));
+            stepInputs[s] = inputs;
+            stepOutputs[s] = output;
+            stepCardinalities[s] = cardinalitiesOf(bn, unionVariables);
+            stepResultStrides[s] = stridesIn(bn, unionVariables, scopes.get(output));
+            stepStrides[s] = new int[inputs.length][];
+            for (int i = 0; i < inputs.length; i++) {
+                stepStrides[s][i] = stridesIn(bn, unionVariables, scopes.get(inputs[i]));
+            }
+        }
+        slots = new double[scopes.size()][];
+        for (int slot = 0; slot < slots.length; slot++) {
+            // unsliced CPTs are read in place, so they need no buffer of their own.
+            if (slot >= numberOfSources || sliceOffsets[slot] != null) {
+                slots[slot] = new double[sizes.get(slot)];
+            }
+        }
+    }
+
+    /**
+     * Execute the plan, giving the values of the observed variables by name.
+     *
+     * @param evidenceValues the value of every observed variable, in the order they were compiled.
+     * @return the distribution of the queried variable given the evidence.
+     */
+    public double[] execute(String... evidenceValues) {
+        int[] values = new int[evidenceValues.length];
+        for (int e = 0; e < evidenceValues.length; e++) {
+            values[e] = observed[e].getOutcomeIndex(evidenceValues[e]);
+        }
+        return execute(values);
+    }
+
+    /**
+     * Execute the plan, giving the values of the observed variables by index.
+     *
+     * @param evidenceValues the outcome index of every observed variable, in the order they were compiled.
+     * @return the distribution of the queried variable given the evidence.
+     */
+    public double[] execute(int[] evidenceValues) {
+        if (evidenceValues.length != observed.length) {
+            throw new IllegalArgumentException("Expected " + observed.length + " evidence values, got "
+                    + evidenceValues.length + ".");
+        }
+
+        // fill the initial slots, slicing the CPTs to the evidence.
+        for (int slot = 0; slot < sources.length; slot++) {
+            double[] cptValues = sources[slot].getCpt().getFactor().getValues();
+            if (sliceOffsets[slot] == null) {
+                slots[slot] = cptValues;
+                continue;
+            }
+            int base = 0;
+            for (int e = 0; e < observed.length; e++) {
+                base += evidenceValues[e] * evidenceStrides[slot][e];
+            }
+            int[] offsets = sliceOffsets[slot];
+            double[] sliced = slots[slot];
+            for (int i = 0; i < offsets.length; i++) {
+                sliced[i] = cptValues[base + offsets[i]];
+            }
+        }
+
+        // run the steps.
+        for (int s = 0; s < stepInputs.length; s++) {
+            double[][] inputs = new double[stepInputs[s].length][];
+            for (int i = 0; i < inputs.length; i++) {
+                inputs[i] = slots[stepInputs[s][i]];
+            }
+            double[] result = slots[stepOutputs[s]];
+            Arrays.fill(result, 0.0);
+            FactorOperations.accumulateProduct(inputs, stepStrides[s], stepResultStrides[s],
+                    stepCardinalities[s], result);
+        }
+
+        double[] distribution = slots[slots.length - 1].clone();
+        if (observed.length > 0) {
+            FactorOperations.normalize(distribution);
+        }
+        return distribution;
+    }
+
+    /**
+     * Execute the plan for many rows of evidence values given by name.
+     *
+     * @param rows the value of every observed variable for each row, in the order they were compiled.
+     * @return the distribution of the queried variable for each row.
+     */
+    public double[][] executeBatch(String[][] rows) {
+        int[][] values = new int[rows.length][observed.length];
+        for (int r = 0; r < rows.length; r++) {
+            if (rows[r].length != observed.length) {
+                throw new IllegalArgumentException("Expected " + observed.length + " evidence values in row "
+                        + r + ", got " + rows[r].length + ".");
+            }
+            for (int e = 0; e < observed.length; e++) {
+                values[r][e] = observed[e].getOutcomeIndex(rows[r][e]);
+            }
+        }
+        return executeBatch(values);
+    }
+
+    /**
+     * Execute the plan for many rows of evidence values given by index. The rows are evaluated
+     * together in blocks: every factor that depends on the evidence holds the values of all the
+     * rows of a block side by side, so each kernel step runs once per block instead of once
+     * per row, and factors that do not depend on the evidence are computed once.
+     *
+     * @param rows the outcome index of every observed variable for each row, in the order they were compiled.
+     * @return the distribution of the queried variable for each row.
+     */
+    public double[][] executeBatch(int[][] rows) {
+        int numberOfSources = sources.length;
+        double[][] distributions = new double[rows.length][];
+
+        // which slots differ between rows: the sliced CPTs and everything computed from them.
+        boolean[] batched = new boolean[slots.length];
+        for (int slot = 0; slot < numberOfSources; slot++) {
+            batched[slot] = sliceOffsets[slot] != null;
+        }
+        for (int s = 0; s < stepInputs.length; s++) {
+            for (int input : stepInputs[s]) {
+                batched[stepOutputs[s]] |= batched[input];
+            }
+        }
+
+        for (int first = 0; first < rows.length; first += BATCH_BLOCK) {
+            int batchSize = Math.min(BATCH_BLOCK, rows.length - first);
+            double[][] block = new double[slots.length][];
+
+            // fill the initial slots, slicing the CPTs to the evidence of every row.
+            for (int slot = 0; slot < numberOfSources; slot++) {
+                double[] cptValues = sources[slot].getCpt().getFactor().getValues();
+                if (!batched[slot]) {
+                    block[slot] = cptValues;
+                    continue;
+                }
+                int[] offsets = sliceOffsets[slot];
+                block[slot] = new double[offsets.length * batchSize];
+                for (int b = 0; b < batchSize; b++) {
+                    int[] row = rows[first + b];
+                    if (row.length != observed.length) {
+                        throw new IllegalArgumentException("Expected " + observed.length + " evidence values in row "
+                                + (first + b) + ", got " + row.length + ".");
+                    }
+                    int base = 0;
+                    for (int e = 0; e < observed.length; e++) {
+                        base += row[e] * evidenceStrides[slot][e];
+                    }
+                    for (int i = 0; i < offsets.length; i++) {
+                        block[slot][i * batchSize + b] = cptValues[base + offsets[i]];
+                    }
+                }
+            }
+
+            // run the steps, on the whole block for the ones that depend on the evidence.
+            for (int s = 0; s < stepInputs.length; s++) {
+                int[] inputs = stepInputs[s];
+                double[][] inputValues = new double[inputs.length][];
+                boolean[] inputBatched = new boolean[inputs.length];
+                for (int i = 0; i < inputs.length; i++) {
+                    inputValues[i] = block[inputs[i]];
+                    inputBatched[i] = batched[inputs[i]];
+                }
+                int output = stepOutputs[s];
+                if (batched[output]) {
+                    block[output] = new double[slots[output].length * batchSize];
+                    FactorOperations.accumulateProductBatch(inputValues, inputBatched, stepStrides[s],
+                            stepResultStrides[s], stepCardinalities[s], block[output], batchSize);
+                } else {
+                    block[output] = new double[slots[output].length];
+                    FactorOperations.accumulateProduct(inputValues, stepStrides[s], stepResultStrides[s],
+                            stepCardinalities[s], block[output]);
+                }
+            }
+
+            // split the result into one distribution per row.
+            int last = slots.length - 1;
+            int outcomes = slots[last].length;
+            for (int b = 0; b < batchSize; b++) {
+                double[] distribution = new double[outcomes];
+                for (int v = 0; v < outcomes; v++) {
+                    distribution[v] = batched[last] ? block[last][v * batchSize + b] : block[last][v];
+                }
+                if (observed.length > 0) {
+                    FactorOperations.normalize(distribution);
+                }
+                distributions[first + b] = distribution;
+            }
+        }
+        return distributions;
+    }
+
+    /**
+     * Execute the plan and get the probability of a single value of the queried variable.
+     *
+     * @param value          the value of the queried variable.
+     * @param evidenceValues the value of every observed variable, in the order they were compiled.
+     * @return the probability of the value given the evidence.
+     */
+    public double getProbability(String value, String... evidenceValues) {
+        return execute(evidenceValues)[queried.getOutcomeIndex(value)];
+    }
+
+    /**
+     * Get the number of elimination steps of the plan, including the final join.
+     *
+     * @return the number of steps.
+     */
+    public int getNumberOfSteps() {
+        return stepInputs.length;
+    }
+
+    /**
+     * Resolve the slice of a node's CPT to the observed variables: the offset of every value of
+     * the slice when all the observed values are zero, and the stride of each observed variable.
+     *
+     * @param node the node of the CPT.
+     * @param slot the slot of the CPT.
+     * @return the ids of the variables left in the slice.
+     */
+    private int[] compileSlice(Node node, int slot) {
+        Factor factor = node.getCpt().getFactor();
+        int[] variables = factor.getVariables();
+        int[] strides = new int[observed.length];
+        boolean sliced = false;
+        for (int e = 0; e < observed.length; e++) {
+            strides[e] = factor.strideOf(observed[e].getId());
+            sliced |= factor.indexOf(observed[e].getId()) != -1;
+        }
+        if (!sliced) {
+            return variables;
+        }
+
+        int[] observedIds = new int[observed.length];
+        for (int e = 0; e < observed.length; e++) {
+            observedIds[e] = observed[e].getId();
+        }
+        int[] scope = remove(variables, observedIds);
+        int[] cardinalities = new int[scope.length];
+        int[] sourceStrides = new int[scope.length];
+        for (int i = 0; i < scope.length; i++) {
+            cardinalities[i] = factor.getCardinalities()[factor.indexOf(scope[i])];
+            sourceStrides[i] = factor.strideOf(scope[i]);
+        }
+
+        // walk the slice once to record where each of its values lives in the CPT.
+        int[] offsets = new int[Factor.computeSize(cardinalities)];
+        int[] counter = new int[scope.length];
+        int offset = 0;
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = offset;
+
+            // advance the odometer, last variable fastest.
+            for (int d = scope.length - 1; d >= 0; d--) {
+                counter[d]++;
+                offset += sourceStrides[d];
+                if (counter[d] < cardinalities[d]) {
+                    break;
+                }
+                offset -= cardinalities[d] * sourceStrides[d];
+                counter[d] = 0;
+            }
+        }
+        sliceOffsets[slot] = offsets;
+        evidenceStrides[slot] = strides;
+        return scope;
+    }
+
+    /**
+     * Check whether a node is one of the observed nodes.
+     *
+     * @param node the node.
+     * @return true if the node is observed.
+     */
+    private boolean isObserved(Node node) {
+        for (Node observedNode : observed) {
+            if (observedNode == node) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get the union of the scopes of some slots, in order of appearance.
+     *
+     * @param scopes the scope of every slot.
+     * @param inputs the slots.
+     * @return the ids of the variables in any of the scopes.
+     */
+    private static int[] union(ArrayList<int[]> scopes, ArrayList<Integer> inputs) {
+        ArrayList<Integer> union = new ArrayList<>();
+        for (Integer slot : inputs) {
+            for (int variable : scopes.get(slot)) {
+                if (!union.contains(variable)) {
+                    union.add(variable);
+                }
+            }
+        }
+        return union.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * Remove some variables from a scope, keeping the order of the rest.
+     *
+     * @param scope     the ids of the variables.
+     * @param variables the ids to remove.
+     * @return the remaining ids.
+     */
+    private static int[] remove(int[] scope, int[] variables) {
+        return Arrays.stream(scope).filter(variable -> indexOf(variables, variable) == -1).toArray();
+    }
+
+    /**
+     * Get the strides of a list of variables in a factor over a given scope.
+     *
+     * @param bn        the Bayesian network.
+     * @param variables the ids of the variables.
+     * @param scope     the ids of the factor's variables.
+     * @return the stride of each variable, zero if it is not in the scope.
+     */
+    private static int[] stridesIn(BayesianNetwork bn, int[] variables, int[] scope) {
+        int[] scopeStrides = Factor.computeStrides(cardinalitiesOf(bn, scope));
+        int[] strides = new int[variables.length];
+        for (int d = 0; d < variables.length; d++) {
+            int index = indexOf(scope, variables[d]);
+            strides[d] = index == -1 ? 0 : scopeStrides[index];
+        }
+        return strides;
+    }
+
+    /**
+     * Get the cardinalities of a list of variables.
+     *
+     * @param bn        the Bayesian network.
+     * @param variables the ids of the variables.
+     * @return the cardinality of each variable.
+     */
+    private static int[] cardinalitiesOf(BayesianNetwork bn, int[] variables) {
+        int[] cardinalities = new int[variables.length];
+        for (int i = 0; i < variables.length; i++) {
+            cardinalities[i] = bn.getNodes().get(variables[i]).getCardinality();
+        }
+        return cardinalities;
+    }
+
+    /**
+     * Get the number of combinations of a list of variables.
+     *
+     * @param bn        the Bayesian network.
+     * @param variables the ids of the variables.
+     * @return the size of a factor over the variables.
+     */
+    private static int sizeOf(BayesianNetwork bn, int[] variables) {
+        return Factor.computeSize(cardinalitiesOf(bn, variables));
+    }
+
+    /**
+     * Box an array of slots into a list.
+     *
+     * @param slots the slots.
+     * @return the slots as a list.
+     */
+    private static ArrayList<Integer> toList(int[] slots) {
+        ArrayList<Integer> list = new ArrayList<>();
+        for (int slot : slots) {
+            list.add(slot);
+        }
+        return list;
+    }
+
+    /**
+     * Find the position of a variable id in an array of ids.
+     *
+     * @param variables the variable ids.
+     * @param variable  the id to look for.
+     * @return the position of the id, or -1 if it is not found.
+     */
+    private static int indexOf(int[] variables, int variable) {
+        for (int i = 0; i < variables.length; i++) {
+            if (variables[i] == variable) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
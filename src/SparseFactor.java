@@ -0,0 +1,150 @@
+import java.util.Arrays;
+
+/**
+ * A factor that only stores its non-zero values. The offsets of the non-zero values (as
+ * they would be in the dense factor) are kept sorted next to the values, so near-deterministic
+ * CPTs and factors with a lot of evidence only pay for the combinations that are possible.
+ *
+ * @author: 210017984
+ */
+public class SparseFactor implements FactorTable {
+
+    // factors with a smaller fraction of non-zero values than this are stored sparse by default.
+    public static final double DEFAULT_DENSITY_THRESHOLD = 0.25;
+
+    // initialise variables.
+    private int[] variables; // ids of the variables in the factor.
+    private int[] cardinalities; // number of values each variable can take.
+    private int[] strides; // offset step for each variable in the dense layout.
+    private int size; // number of combinations in the dense layout.
+    private int[] offsets; // sorted dense offsets of the non-zero values.
+    private double[] values; // the non-zero values.
+
+    /**
+     * Create a new sparse factor.
+     *
+     * @param variables     the ids of the variables in the factor.
+     * @param cardinalities the cardinality of each variable.
+     * @param offsets       the sorted dense offsets of the non-zero values.
+     * @param values        the non-zero values, one for each offset.
+     */
+    public SparseFactor(int[] variables, int[] cardinalities, int[] offsets, double[] values) {
+        if (offsets.length != values.length) {
+            throw new IllegalArgumentException("Each offset needs exactly one value.");
+        }
+        this.variables = variables;
+        this.cardinalities = cardinalities;
+        this.strides = Factor.computeStrides(cardinalities);
+        this.size = Factor.computeSize(cardinalities);
+        this.offsets = offsets;
+        this.values = values;
+    }
+
+    /**
+     * Create a sparse factor holding the non-zero values of a dense factor.
+     *
+     * @param factor the dense factor.
+     * @return the sparse version of the factor.
+     */
+    public static SparseFactor fromDense(Factor factor) {
+        double[] dense = factor.getValues();
+        int nonZeros = factor.countNonZeros();
+        int[] offsets = new int[nonZeros];
+        double[] values = new double[nonZeros];
+        for (int i = 0, n = 0; i < dense.length; i++) {
+            if (dense[i] != 0.0) {
+                offsets[n] = i;
+                values[n] = dense[i];
+                n++;
+            }
+        }
+        return new SparseFactor(factor.getVariables(), factor.getCardinalities(), offsets, values);
+    }
+
+    /**
+     * Expand the sparse factor to a dense one.
+     *
+     * @return the dense version of the factor.
+     */
+    public Factor toDense() {
+        Factor dense = new Factor(variables, cardinalities);
+        for (int i = 0; i < offsets.length; i++) {
+            dense.getValues()[offsets[i]] = values[i];
+        }
+        return dense;
+    }
+
+    /**
+     * Get the ids of the variables in the factor.
+     *
+     * @return the variable ids.
+     */
+    public int[] getVariables() {
+        return variables;
+    }
+
+    /**
+     * Get the cardinality of each variable in the factor.
+     *
+     * @return the cardinalities.
+     */
+    public int[] getCardinalities() {
+        return cardinalities;
+    }
+
+    /**
+     * Get the stride of each variable in the dense layout.
+     *
+     * @return the strides.
+     */
+    public int[] getStrides() {
+        return strides;
+    }
+
+    /**
+     * Get the sorted dense offsets of the non-zero values.
+     *
+     * @return the offsets.
+     */
+    public int[] getOffsets() {
+        return offsets;
+    }
+
+    /**
+     * Get the non-zero values.
+     *
+     * @return the values, one for each offset.
+     */
+    public double[] getValues() {
+        return values;
+    }
+
+    /**
+     * Get the number of combinations of the factor, including the zero ones.
+     *
+     * @return the dense size of the factor.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Get the fraction of the combinations that are non-zero.
+     *
+     * @return the density of the factor.
+     */
+    public double getDensity() {
+        return (double) values.length / size;
+    }
+
+    /**
+     * Get the value stored at a given dense offset.
+     *
+     * @param offset the offset of the combination.
+     * @return the value of the combination, zero if it is not stored.
+     */
+    public double getValue(int offset) {
+        int index = Arrays.binarySearch(offsets, offset);
+        return index < 0 ? 0.0 : values[index];
+    }
+}
@@ -1,5 +1,8 @@
+import java.io.File;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Create a new Variable Elimination run.
@@ -12,8 +15,22 @@ public class VariableElimination {
     private Node queried;
     private ArrayList<String> order;
     private ArrayList<String[]> evidences;
-    private int numberOfOperations = 0;
-    private int truthValuesCalculated = 0;
+    private AtomicInteger numberOfOperations = new AtomicInteger(); // counters are shared by parallel steps.
+    private AtomicInteger truthValuesCalculated = new AtomicInteger();
+    private double sparseThreshold = SparseFactor.DEFAULT_DENSITY_THRESHOLD;
+    private int offHeapThreshold = DEFAULT_OFF_HEAP_THRESHOLD;
+    private File spillDirectory; // directory for file-backed factors, null for direct memory.
+    private ArrayList<Node> requisite = new ArrayList<>(); // nodes whose CPTs the last query needed.
+    private ArrayList<String> pruned = new ArrayList<>(); // labels of the nodes the last query pruned.
+    private long parallelThreshold = DEFAULT_PARALLEL_THRESHOLD;
+    private FactorMemo memo; // intermediate factors shared with other queries, null when not memoising.
+    private TreeMap<Integer, Integer> observedValues = new TreeMap<>(); // the evidence of the query, by variable id.
+
+    // intermediate factors with more values than this (64M values, 512MB) are kept off the heap.
+    public static final int DEFAULT_OFF_HEAP_THRESHOLD = 1 << 26;
+
+    // queries creating more values than this (1M values) eliminate independent branches in parallel.
+    public static final long DEFAULT_PARALLEL_THRESHOLD = 1 << 20;
 
     public VariableElimination() {
     }
@@ -36,7 +53,7 @@ public class VariableElimination {
      * @return the number of times joinMarginalise was called.
      */
     public int getNumberOfOperations() {
-        return numberOfOperations;
+        return numberOfOperations.get();
     }
 
     /**
@@ -44,7 +61,72 @@ public class VariableElimination {
      * @return the number of truth values calculated.
      */
     public int getTruthValuesCalculated() {
-        return truthValuesCalculated;
+        return truthValuesCalculated.get();
+    }
+
+    /**
+     * Get the labels of the nodes whose CPTs the last query did not need.
+     * @return the labels of the pruned nodes.
+     */
+    public ArrayList<String> getPrunedVariables() {
+        return pruned;
+    }
+
+    /**
+     * Set the density below which factors are stored sparse and multiplied and summed out
+     * by skipping their zeros. A threshold of zero keeps every factor dense.
+     * @param sparseThreshold the fraction of non-zero values below which a factor is sparse.
+     */
+    public void setSparseThreshold(double sparseThreshold) {
+        this.sparseThreshold = sparseThreshold;
+    }
+
+    /**
+     * Set the number of values above which intermediate factors are stored outside the heap.
+     * @param offHeapThreshold the largest number of values kept in a double[].
+     */
+    public void setOffHeapThreshold(int offHeapThreshold) {
+        this.offHeapThreshold = offHeapThreshold;
+    }
+
+    /**
+     * Set the directory where off-heap factors are backed by memory-mapped files, so factors
+     * larger than the available memory can still be computed. Without one, off-heap factors
+     * use direct memory.
+     * @param spillDirectory the directory for the backing files, or null for direct memory.
+     */
+    public void setSpillDirectory(File spillDirectory) {
+        this.spillDirectory = spillDirectory;
+    }
+
+    /**
+     * Set the total number of values a query has to create before independent branches of its
+     * elimination tree are eliminated in parallel on the common fork/join pool.
+     * @param parallelThreshold the number of values, or Long.MAX_VALUE to always run sequentially.
+     */
+    public void setParallelThreshold(long parallelThreshold) {
+        this.parallelThreshold = parallelThreshold;
+    }
+
+    /**
+     * Share intermediate factors with other queries on the same network through a memo table.
+     * @param memo the memo table, or null to compute every intermediate factor.
+     */
+    public void setFactorMemo(FactorMemo memo) {
+        this.memo = memo;
+    }
+
+    /**
+     * Compile the query into a plan that can be executed again and again with other values
+     * for the same evidence variables.
+     * @return the compiled query plan.
+     */
+    public QueryPlan compile() {
+        String[] evidenceLabels = new String[evidences == null ? 0 : evidences.size()];
+        for (int i = 0; i < evidenceLabels.length; i++) {
+            evidenceLabels[i] = evidences.get(i)[0];
+        }
+        return new QueryPlan(bn, queried.getLabel(), evidenceLabels, order.toArray(new String[0]));
     }
 
     /**
@@ -54,116 +136,368 @@ public class VariableElimination {
      * @return
      */
     public double runVE(String value, boolean evidence) {
+        // every intermediate factor of the query takes its array from the thread's arena.
+        FactorArena arena = FactorArena.current();
+        arena.open();
+        try {
+            return eliminate(value, evidence, arena);
+        } finally {
+            arena.close();
+        }
+    }
+
+    /**
+     * Perform the elimination of a query, handing the arrays of consumed factors back to the arena.
+     * @param value the value being looked for.
+     * @param evidence the evidence given.
+     * @param arena the open arena of the current thread.
+     * @return the probability of the queried value.
+     */
+    private double eliminate(String value, boolean evidence, FactorArena arena) {
         pruneIrrelevantVariables(evidence);
         ArrayList<CPT> factors = createSetFactors();
+        int[] sizes = planFactorSizes(factors, evidence);
+        arena.reserve(sizes);
+
+        observedValues = new TreeMap<>();
+        if (evidence) {
+            for (String[] ev : evidences) {
+                Node evNode = bn.getNode(ev[0]);
+                observedValues.put(evNode.getId(), evNode.getOutcomeIndex(ev[1]));
+            }
+        }
 
         // if we are performing variable elimination with evidence, then project evidence for related factors.
         if (evidence) {
             projectEvidence(factors);
         }
-        CPT newFactor = null;
-        // if order has at least one element, then perform variable elimination.
-        if (order.size() >= 1) {
-            for (String label : order) {
-                ArrayList<CPT> toSumOut = getFactorsContainingLabel(label, factors); // get factors containing label.
-                factors.removeAll(toSumOut); // remove all factors containing label.
+        long work = 0;
+        for (int size : sizes) {
+            work += size;
+        }
+        CPT newFactor = buildEliminationTree(factors, work >= parallelThreshold, arena).compute();
+        if (evidence) {
+            newFactor.normalize();
+        }
 
-                // create a new factor with all variables in factors of ToSumOut but without label.
-                newFactor = joinMarginalise(toSumOut, label);
-                factors.add(newFactor); // add new factor.
+        // Get the truth value that we are looking.
+        int truthLooking = queried.getOutcomeIndex(value);
+        return newFactor.getCPTSingleProb(truthLooking);
+    }
+
+    /**
+     * Turn the elimination order into an elimination tree. Every variable of the order becomes a
+     * step consuming the factors that mention it, and the step that later consumes its result
+     * becomes its parent. The root joins what is left and sums out everything but the queried
+     * variable.
+     * @param factors the initial factors of the query.
+     * @param parallel whether independent branches of the tree are eliminated in parallel.
+     * @param arena the open arena of the thread running the query.
+     * @return the root step of the tree.
+     */
+    private EliminationStep buildEliminationTree(ArrayList<CPT> factors, boolean parallel, FactorArena arena) {
+        ArrayList<EliminationStep> live = new ArrayList<>();
+        for (int i = 0; i < factors.size(); i++) {
+            live.add(new EliminationStep(factors.get(i), requisite.get(i).getId()));
+        }
+        for (String label : order) {
+            ArrayList<EliminationStep> inputs = new ArrayList<>();
+            for (EliminationStep step : live) {
+                if (step.labels.contains(label)) {
+                    inputs.add(step);
+                }
             }
+            // observed variables are sliced out of every factor, so there is nothing to eliminate.
+            if (!inputs.isEmpty()) {
+                live.removeAll(inputs);
+                live.add(new EliminationStep(label, inputs, parallel, arena));
+            }
+        }
+        return new EliminationStep(null, live, parallel, arena);
+    }
 
-            if (evidence) {
-                if (factors.size() > 1) {
-                    // the node label should be the same for both - the queried node.
-                    newFactor = join(factors, queried.getLabel());
+    /**
+     * A step of the elimination tree: an initial factor, the elimination of a variable from the
+     * results of its inputs, or the final join at the root.
+     */
+    private class EliminationStep extends RecursiveTask<CPT> {
+
+        private static final long serialVersionUID = 1L;
+
+        // initialise variables.
+        private String label; // the variable eliminated, null for the root.
+        private CPT factor; // the initial factor of a leaf.
+        private ArrayList<EliminationStep> inputs = new ArrayList<>();
+        private ArrayList<String> labels = new ArrayList<>(); // the labels of the step's result.
+        private TreeSet<Integer> sources = new TreeSet<>(); // the nodes whose CPTs the result is computed from.
+        private TreeSet<Integer> eliminated = new TreeSet<>(); // the variables summed out of the result.
+        private boolean parallel;
+        private FactorArena arena; // the arena of the thread running the query.
+
+        /**
+         * Create a leaf step holding an initial factor.
+         * @param factor the initial factor.
+         * @param source the id of the node whose CPT the factor comes from.
+         */
+        private EliminationStep(CPT factor, int source) {
+            this.factor = factor;
+            this.labels = factor.getNodeLabels();
+            this.sources.add(source);
+        }
+
+        /**
+         * Create a step eliminating a variable from the results of other steps.
+         * @param label the variable eliminated, null for the root.
+         * @param inputs the steps whose results are consumed.
+         * @param parallel whether independent inputs are computed in parallel.
+         * @param arena the arena of the thread running the query.
+         */
+        private EliminationStep(String label, ArrayList<EliminationStep> inputs, boolean parallel, FactorArena arena) {
+            this.label = label;
+            this.inputs = inputs;
+            this.parallel = parallel;
+            this.arena = arena;
+            for (EliminationStep input : inputs) {
+                for (String inputLabel : input.labels) {
+                    if (!labels.contains(inputLabel)) {
+                        labels.add(inputLabel);
+                    }
                 }
-                newFactor.normalize();
+                sources.addAll(input.sources);
+                eliminated.addAll(input.eliminated);
+            }
+            labels.remove(label);
+            if (label != null) {
+                eliminated.add(bn.getNode(label).getId());
             }
         }
-        // otherwise just assign the queried node's cpt to newFactor and read its value.
-        else if (order.size() == 0 || newFactor == null) {
-            newFactor = queried.getCpt();
+
+        /**
+         * Get the memo key of the step's result: the CPTs it is computed from, the variables
+         * summed out and the evidence on the variables of those CPTs.
+         * @return the key.
+         */
+        private String memoKey() {
+            TreeMap<Integer, Integer> evidence = new TreeMap<>();
+            for (Integer source : sources) {
+                for (int variable : bn.getNodes().get(source).getCpt().getVariables()) {
+                    if (observedValues.containsKey(variable)) {
+                        evidence.put(variable, observedValues.get(variable));
+                    }
+                }
+            }
+            return sources + " " + eliminated + " " + evidence;
         }
 
-        // Get the truth value that we are looking.
-        int truthLooking = (value.equalsIgnoreCase("T")) ? 1 : 0;
-        return newFactor.getCPTSingleProb(truthLooking);
+        /**
+         * Compute the result of the step, forking its independent inputs when running in parallel.
+         * The step only uses the query's arena on the thread that owns it; stolen by another
+         * thread, it allocates its own arrays.
+         * @return the factor of the step.
+         */
+        @Override
+        protected CPT compute() {
+            if (factor != null) {
+                return factor;
+            }
+            FactorArena active = FactorArena.enter(arena);
+            try {
+                return eliminateStep();
+            } finally {
+                FactorArena.restore(active);
+            }
+        }
+
+        /**
+         * Compute the result of the step with the query's arena active where it can be used.
+         * @return the factor of the step.
+         */
+        private CPT eliminateStep() {
+            // a result memoised by an earlier query saves computing the whole branch.
+            String key = memo != null && label != null ? memoKey() : null;
+            if (key != null) {
+                CPT memoised = memo.get(key);
+                if (memoised != null) {
+                    return memoised;
+                }
+            }
+            ArrayList<EliminationStep> branches = new ArrayList<>();
+            for (EliminationStep input : inputs) {
+                if (input.factor == null) {
+                    branches.add(input);
+                }
+            }
+            ArrayList<CPT> toSumOut = new ArrayList<>();
+            if (parallel && branches.size() > 1) {
+                // waiting for the branches can run tasks of other queries, which must not see the arena.
+                FactorArena active = FactorArena.enter(null);
+                try {
+                    ForkJoinTask.invokeAll(branches);
+                } finally {
+                    FactorArena.restore(active);
+                }
+                for (EliminationStep input : inputs) {
+                    toSumOut.add(input.factor == null ? input.join() : input.factor);
+                }
+            } else {
+                for (EliminationStep input : inputs) {
+                    toSumOut.add(input.compute());
+                }
+            }
+
+            if (label == null) {
+                // the remaining factors only mention the queried node - the node label should be the same for all.
+                CPT newFactor = toSumOut.size() > 1 ? VariableElimination.this.join(toSumOut) : toSumOut.get(0);
+                if (toSumOut.size() == 1 && inputs.get(0).factor != null) {
+                    // a lone leaf can be the network's own CPT, which normalising must not change.
+                    newFactor = new CPT(newFactor);
+                }
+                // sum out anything the order did not mention, so only the queried node remains.
+                ArrayList<String> leftOver = new ArrayList<>(newFactor.getNodeLabels());
+                leftOver.remove(queried.getLabel());
+                if (!leftOver.isEmpty()) {
+                    newFactor = marginalise(newFactor, leftOver);
+                }
+                return newFactor;
+            }
+            // create a new factor with all variables in factors of ToSumOut but without label.
+            CPT newFactor = joinMarginalise(toSumOut, label);
+            for (CPT used : toSumOut) {
+                arena.release(used.getTable()); // the network's own CPTs and other threads are ignored by the arena.
+            }
+            if (key != null) {
+                memo.put(key, newFactor); // the memo keeps its own copy.
+            }
+            return newFactor;
+        }
     }
 
     /**
-     *
-     * @param factors
+     * Plan the sizes of the factors the elimination order will create, by eliminating the variable
+     * sets of the factors without computing any values.
+     * @param factors the initial factors of the query.
+     * @param evidence whether the evidence is sliced out of the factors first.
+     * @return the size of every sliced and intermediate factor, in creation order.
      */
-    private void projectEvidence(ArrayList<CPT> factors) {
-        for (String[] ev : evidences) {
-            // find the correspondent factor for current evidence label.
-            CPT evFactor = getCorrespondentFactorForLabel(factors, ev[0]);
-            boolean truthToChange = (ev[1].equalsIgnoreCase("T")) ? true : false;
-            evFactor.setToZero(truthToChange);
+    private int[] planFactorSizes(ArrayList<CPT> factors, boolean evidence) {
+        ArrayList<Integer> observed = new ArrayList<>();
+        if (evidence) {
+            for (String[] ev : evidences) {
+                observed.add(bn.getNode(ev[0]).getId());
+            }
         }
+        ArrayList<Integer> sizes = new ArrayList<>();
+        ArrayList<ArrayList<Integer>> scopes = new ArrayList<>();
+        for (CPT factor : factors) {
+            ArrayList<Integer> scope = new ArrayList<>();
+            for (int variable : factor.getVariables()) {
+                scope.add(variable);
+            }
+            if (scope.removeAll(observed)) {
+                sizes.add(scopeSize(scope));
+            }
+            scopes.add(scope);
+        }
+        for (String label : order) {
+            Integer variable = bn.getNode(label).getId();
+            ArrayList<Integer> joined = new ArrayList<>();
+            Iterator<ArrayList<Integer>> iterator = scopes.iterator();
+            while (iterator.hasNext()) {
+                ArrayList<Integer> scope = iterator.next();
+                if (scope.contains(variable)) {
+                    for (Integer other : scope) {
+                        if (!joined.contains(other)) {
+                            joined.add(other);
+                        }
+                    }
+                    iterator.remove();
+                }
+            }
+            if (!joined.isEmpty()) {
+                joined.remove(variable);
+                sizes.add(scopeSize(joined));
+                scopes.add(joined);
+            }
+        }
+        return sizes.stream().mapToInt(Integer::intValue).toArray();
     }
 
     /**
-     * Prunes all the irrelevant variables according to our task. If the evidence flag is true, then it deletes
-     * ancestors of the evidences. Otherwise it just removes every variable that is not an ancestor of the queried
-     * variable.
+     * Get the number of combinations of a set of variables.
+     * @param scope the ids of the variables.
+     * @return the product of their cardinalities.
+     */
+    private int scopeSize(ArrayList<Integer> scope) {
+        long size = 1;
+        for (Integer variable : scope) {
+            size *= bn.getNodes().get(variable).getCardinality();
+        }
+        return (int) Math.min(size, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Project the evidence by slicing every factor that mentions an observed variable down to the
+     * observed value, removing that variable from the factor. The sliced factors are new CPTs, so the
+     * network's own CPTs are left untouched for the next query.
      *
-     * @param evidence
+     * @param factors the factors to project the evidence on - sliced factors replace the originals.
      */
-    private void pruneIrrelevantVariables(boolean evidence) {
-        ArrayList<String> ancLabels = new ArrayList<>();
-        // prune not ancestors of queried node.
-        prune(queried, ancLabels);
-        // prune not ancestors of evidence nodes.
-        if (evidence) {
-            for (String[] ev : evidences) {
-                Node evNode = bn.getNode(ev[0]); // get node of evidence.
-                prune(evNode, ancLabels); // prune order lists based on this evidence ancestors.
+    private void projectEvidence(ArrayList<CPT> factors) {
+        int[] variables = new int[evidences.size()];
+        int[] observed = new int[evidences.size()];
+        ArrayList<String> observedLabels = new ArrayList<>();
+        for (int i = 0; i < evidences.size(); i++) {
+            Node evNode = bn.getNode(evidences.get(i)[0]);
+            variables[i] = evNode.getId();
+            observed[i] = evNode.getOutcomeIndex(evidences.get(i)[1]);
+            observedLabels.add(evNode.getLabel());
+        }
+
+        for (int i = 0; i < factors.size(); i++) {
+            CPT factor = factors.get(i);
+            ArrayList<String> nodeLabels = new ArrayList<>(factor.getNodeLabels());
+            // only slice the factors that mention at least one observed variable.
+            if (nodeLabels.removeAll(observedLabels)) {
+                Factor sliced = FactorOperations.reduce(factor.getFactor(), variables, observed);
+                factors.set(i, toCPT(nodeLabels, sliced));
             }
         }
-        order.retainAll(ancLabels); // retain all elements identified as ancestors.
     }
 
     /**
-     * Performs the pruning by removing every variable that is not an ancestor of a given initial node.
+     * Prunes all the irrelevant variables according to our task. Bayes-ball keeps only the
+     * requisite nodes: nodes d-separated from the queried variable by the evidence and barren
+     * nodes are dropped, and so are their labels from the order.
      *
-     * @param initialNode the initial node that we search for its ancestors.
+     * @param evidence whether the query has evidence.
      */
-    private void prune(Node initialNode, ArrayList<String> ancLabels) {
-        ancLabels.add(initialNode.getLabel());
-
-        Stack<Node> ancestors = new Stack<>();
-        ancestors.push(initialNode);
-        Node currentNode = initialNode;
-
-        // iterate all the ancestors.
-        while (!ancestors.isEmpty()) {
-            // add all ancestors to the stack.
-            if (currentNode.getParents().size() != 0) {
-                for (Node node : currentNode.getParents()) {
-                    ancestors.push(node);
-                    ancLabels.add(node.getLabel());
-                }
+    private void pruneIrrelevantVariables(boolean evidence) {
+        ArrayList<Node> observed = new ArrayList<>();
+        if (evidence) {
+            for (String[] ev : evidences) {
+                observed.add(bn.getNode(ev[0])); // get node of evidence.
             }
-
-            currentNode = ancestors.pop(); // take out the first element in the stack.
         }
+        BayesBall bayesBall = new BayesBall(bn, queried, observed);
+        requisite = bayesBall.getRequisite();
+        pruned = new ArrayList<>();
+        for (Node node : bayesBall.getPruned()) {
+            pruned.add(node.getLabel());
+        }
+        order.removeAll(pruned); // only requisite variables are left to eliminate.
     }
 
     /**
-     * Create a set of factors for every node in the Bayesian network that is included in the order or is the queried variable.
+     * Create a set of factors from the CPTs of the requisite nodes.
      *
-     * @return
+     * @return the factors of the query.
      */
     private ArrayList<CPT> createSetFactors() {
         ArrayList<CPT> factors = new ArrayList<>();
 
-        // iterate through the nodes of the BN.
-        for (Node node : bn.getNodes()) {
-            if (order.contains(node.getLabel()) || node.getLabel().equalsIgnoreCase(queried.getLabel())) {
-                factors.add(node.getCpt());
-            }
+        // iterate through the requisite nodes of the BN.
+        for (Node node : requisite) {
+            factors.add(node.getCpt());
         }
 
         return factors;
@@ -188,208 +522,228 @@ public class VariableElimination {
     }
 
     /**
-     * Find the correspondent CPT/factor from the factors for a passed in label.
-     *
-     * @param label
-     * @return
+     * Marginalise a CPT, removing the label.
+     * @param newCPT the CPT to marginalise.
+     * @param label the label to sum out.
+     * @return the marginalised CPT.
      */
-    private CPT getCorrespondentFactorForLabel(ArrayList<CPT> factors, String label) {
-        // Iterate through the factors.
-        for (CPT factor : factors) {
-            Node node = bn.getNode(label);
-            // if the corresponding node for that
-            if (factor.getCorrespondingNode().equals(node)) {
-                return factor;
-            }
-        }
-        return null;
+    public CPT marginalise(CPT newCPT, String label) {
+        ArrayList<String> labels = new ArrayList<>();
+        labels.add(label);
+        return marginalise(newCPT, labels);
     }
 
     /**
-     * Marginalise a CPT, removing the label.
-     * @param newCPT
-     * @param label
-     * @return
+     * Marginalise a CPT, summing out all the given labels in a single pass.
+     * @param newCPT the CPT to marginalise.
+     * @param labels the labels to sum out.
+     * @return the marginalised CPT.
      */
-    public CPT marginalise(CPT newCPT, String label) {
-        CPT marginalised = new CPT();
-        // set node labels everything except current label.
+    public CPT marginalise(CPT newCPT, ArrayList<String> labels) {
+        // set node labels everything except the summed out labels.
         ArrayList<String> nodeLabels = new ArrayList<>(newCPT.getNodeLabels());
-        int index = nodeLabels.indexOf(label);
-
-        if (nodeLabels.size() > 1) {
-            nodeLabels.remove(label);
-            marginalised.setNodeLabels(nodeLabels);
-
-            // add the marginalised values.
-            ArrayList<Double> marginalisedFactorValues = new ArrayList<>();
-            ArrayList<ArrayList<Integer>> truthAlreadyTried = new ArrayList<>();
-
-            // iterate through the CPT values.
-            for (int i = 0; i < newCPT.getCptValues().size(); i++) {
-                ArrayList<Integer> truthValuesForTrue = newCPT.getCombinations().get(i);
-                ArrayList<Integer> truthValuesForFalse = newCPT.getCombinations().get(i);
-                truthValuesForTrue.set(index, 1); // set value for true.
-                truthValuesForFalse.set(index, 0); // set value for false.
-
-                // if truth was not already tried for both true and false combinations, then use them.
-                if (!truthAlreadyTried.contains(truthValuesForTrue) && !truthAlreadyTried.contains(truthValuesForFalse)) {
-                    double value = newCPT.getCPTProbability(truthValuesForTrue) + newCPT.getCPTProbability(truthValuesForFalse);
-                    marginalisedFactorValues.add(value);
-                    truthAlreadyTried.add(truthValuesForTrue);
-                    truthAlreadyTried.add(truthValuesForFalse);
-                    truthValuesCalculated++; // increment counter for truth values calculated.
-                }
-
+        int[] variables = new int[labels.size()];
+        int count = 0;
+        for (String label : labels) {
+            int index = newCPT.getNodeLabels().indexOf(label);
+            if (index != -1) {
+                variables[count++] = newCPT.getVariables()[index];
+                nodeLabels.remove(label);
             }
-            Collections.reverse(marginalisedFactorValues); // reverse the values (Added different order).
+        }
+        variables = Arrays.copyOf(variables, count);
 
-            marginalised.addCPTvalues(marginalisedFactorValues);
-        } else if (nodeLabels.size() == 1) {
-            marginalised.setNodeLabels(nodeLabels);
+        if (newCPT.isOffHeap()) {
+            ArrayList<CPT> toSumOut = new ArrayList<>();
+            toSumOut.add(newCPT);
+            return multiplyOffHeap(toSumOut, variables);
         }
-        return marginalised;
+        // sparse factors are summed out by visiting their non-zero values only.
+        Factor marginalisedFactor = newCPT.getDensity() < sparseThreshold
+                ? FactorOperations.sumOut(newCPT.getSparseFactor(), variables)
+                : FactorOperations.sumOut(newCPT.getFactor(), variables);
+        truthValuesCalculated.addAndGet(marginalisedFactor.size()); // increment counter for truth values calculated.
+        return toCPT(nodeLabels, marginalisedFactor);
     }
 
+    /**
+     * The JoinMarginalise operation creates a new CPT with all
+     * variables in factors of ToSumOut but without Y/label. The product and the
+     * sum out are fused, so the joined factor is never materialised.
+     * @param toSumOut the factors/cpts to sumout.
+     * @param label the label to marginalise.
+     * @return the new marginalised CPT.
+     */
+    public CPT joinMarginalise(ArrayList<CPT> toSumOut, String label) {
+        numberOfOperations.incrementAndGet(); // increment number of operations counter.
+
+        if (toSumOut.size() == 1) {
+            return marginalise(toSumOut.get(0), label);
+        }
+        int variable = -1;
+        for (CPT cpt : toSumOut) {
+            int index = cpt.getNodeLabels().indexOf(label);
+            if (index != -1) {
+                variable = cpt.getVariables()[index];
+            }
+        }
+        return multiply(toSumOut, variable);
+    }
 
     /**
-     * Get all the variables in both CPTs.
-     * @param first the first CPT.
-     * @param second the second CPT.
-     * @return common variables.
+     * Join a set of CPTs together in a single pass.
+     * @param toJoin the CPTs to join.
+     * @return the new joined CPT.
      */
-    private ArrayList<String> variablesBoth(CPT first, CPT second) {
-        // return common elements in first and second CPTs.
-        return (ArrayList<String>) first.getNodeLabels().stream().filter(second.getNodeLabels()::contains).collect(Collectors.toList());
+    private CPT join(ArrayList<CPT> toJoin) {
+        return multiply(toJoin);
     }
 
     /**
-     * Get variables present in the first CPT but not in the second.
-     * @param first the first CPT.
-     * @param second the second CPT.
-     * @return the variables not in the second CPT.
+     * Multiply a set of CPTs and sum out the given variables. If the sparsest CPT is below the
+     * sparse threshold, the product is driven by its non-zero values; otherwise the dense kernel
+     * walks every combination.
+     * @param cpts the CPTs to multiply.
+     * @param variables the ids of the variables to sum out of the product.
+     * @return the new CPT.
      */
-    private ArrayList<String> variablesNotInSecond(CPT first, CPT second) {
-        return (ArrayList<String>) first.getNodeLabels().stream()
-                .filter(element -> !second.getNodeLabels().contains(element))
-                .collect(Collectors.toList());
+    private CPT multiply(ArrayList<CPT> cpts, int... variables) {
+        if (requiresOffHeap(cpts, variables)) {
+            return multiplyOffHeap(cpts, variables);
+        }
+        CPT sparsest = cpts.get(0);
+        for (CPT cpt : cpts) {
+            if (cpt.getDensity() < sparsest.getDensity()) {
+                sparsest = cpt;
+            }
+        }
+
+        Factor result;
+        if (sparsest.getDensity() < sparseThreshold) {
+            ArrayList<CPT> others = new ArrayList<>(cpts);
+            others.remove(sparsest);
+            result = FactorOperations.productSumOut(sparsest.getSparseFactor(), getFactors(others), variables);
+        } else {
+            result = FactorOperations.productSumOut(getFactors(cpts), variables);
+        }
+        truthValuesCalculated.addAndGet(result.size()); // increment counter for truth values calculated.
+        return toCPT(getLabels(cpts, result.getVariables()), result);
     }
 
     /**
-     * Get truth combinations of CPTs between two CPTs.
-     * @param truthCombination the truth combinations examined.
-     * @param newCPT the new cpt.
-     * @param cpt the previous cpt.
-     * @return an arraylist containing all the possible CPT truth combinations.
+     * Check whether a product has to be computed off the heap - either because one of the CPTs
+     * is already stored there, or because the result would be larger than the off-heap threshold.
+     * @param cpts the CPTs to multiply.
+     * @param variables the ids of the variables to sum out of the product.
+     * @return true if the product should be computed off the heap.
      */
-    private ArrayList<Integer> getCPTTruthCombination(ArrayList<Integer> truthCombination, CPT newCPT, CPT cpt) {
-        ArrayList<Integer> combinations = new ArrayList<>();
-        // iterate through all the node labels of both cpt and new cpt.
-        for (int i = 0; i < cpt.getNodeLabels().size(); i++) {
-            for (int x = 0; x < newCPT.getNodeLabels().size(); x++) {
-                // if two labels are equal, then add the value of truth combination in the combinations.
-                if (newCPT.getNodeLabels().get(x).equalsIgnoreCase(cpt.getNodeLabels().get(i))) {
-                    combinations.add(truthCombination.get(x));
+    private boolean requiresOffHeap(ArrayList<CPT> cpts, int... variables) {
+        ArrayList<Integer> seen = new ArrayList<>();
+        long size = 1;
+        for (CPT cpt : cpts) {
+            if (cpt.isOffHeap()) {
+                return true;
+            }
+            FactorTable table = cpt.getTable();
+            for (int i = 0; i < table.getVariables().length; i++) {
+                int variable = table.getVariables()[i];
+                if (!seen.contains(variable) && indexOf(variables, variable) == -1) {
+                    seen.add(variable);
+                    size *= table.getCardinalities()[i];
                 }
-
             }
         }
-        return combinations;
+        return size > offHeapThreshold;
     }
 
     /**
-     * The JoinMarginalise operation creates a new CPT with all
-     * variables in factors of ToSumOut but without Y/label
-     * @param toSumOut the factors/cpts to sumout.
-     * @param label the label to marginalise.
-     * @return
+     * Multiply a set of CPTs and sum out the given variables off the heap. Off-heap inputs are
+     * released once consumed, and a result small enough for the heap is copied back to it.
+     * @param cpts the CPTs to multiply.
+     * @param variables the ids of the variables to sum out of the product.
+     * @return the new CPT.
      */
-    public CPT joinMarginalise(ArrayList<CPT> toSumOut, String label) {
-        numberOfOperations++; // increment number of operations counter.
-
-        CPT newFactor;
-        if (toSumOut.size() > 1) {
-            newFactor = join(toSumOut, label);
-        } else {
-            newFactor = toSumOut.get(0);
+    private CPT multiplyOffHeap(ArrayList<CPT> cpts, int... variables) {
+        FactorTable[] tables = new FactorTable[cpts.size()];
+        for (int i = 0; i < cpts.size(); i++) {
+            tables[i] = cpts.get(i).getTable();
+        }
+        OffHeapFactor result = OffHeapFactor.productSumOut(tables, variables, spillDirectory);
+        ArrayList<String> labels = getLabels(cpts, result.getVariables());
+        for (CPT cpt : cpts) {
+            cpt.releaseOffHeap(); // intermediate factors are only used once.
         }
-        CPT marginalisedNewFactor = marginalise(newFactor, label);
+        truthValuesCalculated.addAndGet(result.size()); // increment counter for truth values calculated.
 
-        return marginalisedNewFactor;
+        if (result.size() > offHeapThreshold) {
+            return new CPT(labels, result);
+        }
+        Factor dense = result.toDense();
+        result.close();
+        return toCPT(labels, dense);
     }
 
     /**
-     * Join two CPTs together.
-     * @param toSumOut the variables to sum out.
-     * @param label the label to use for the new CPT.
-     * @return the new joined CPT>
+     * Wrap a computed factor in a CPT, storing it sparse if its density is below the threshold.
+     * @param nodeLabels the labels of the factor's variables, in factor order.
+     * @param factor the computed factor.
+     * @return the new CPT.
      */
-    private CPT join(ArrayList<CPT> toSumOut, String label) {
-        CPT newCPT = new CPT(label);
-        CPT first = toSumOut.get(0);
-        // Join iteratively (two factors at a time).
-        for (int i = 1; i < toSumOut.size(); i++) {
-            CPT second = toSumOut.get(i);
-
-            ArrayList<String> combined = getCombined(first, second);
-            // Truth combinations to calculate.
-            newCPT.setNodeLabels(combined);
-
-            ArrayList<Double> newCPTValues = calculateNewCPTValues(newCPT, first, second);
-
-            // reverse values orders.
-            Collections.reverse(newCPTValues);
-            newCPT.addCPTvalues(newCPTValues);
-
-            first = new CPT(newCPT); // make a deep copy.
+    private CPT toCPT(ArrayList<String> nodeLabels, Factor factor) {
+        CPT cpt = new CPT(nodeLabels, factor);
+        if (cpt.getDensity() < sparseThreshold) {
+            SparseFactor sparse = SparseFactor.fromDense(factor);
+            FactorArena.current().release(factor); // the dense array is no longer needed.
+            return new CPT(nodeLabels, sparse);
         }
-        return newCPT;
+        return cpt;
     }
 
     /**
-     * Calculate new CPT values after joining two CPTs together.
-     * @param newCPT the newCPT that holds the addition.
-     * @param first the first cpt.
-     * @param second the second cpt.
-     * @return the new values to be added.
+     * Get the factors backing a list of CPTs.
+     * @param cpts the CPTs.
+     * @return the factors of the CPTs.
      */
-    public ArrayList<Double> calculateNewCPTValues(CPT newCPT, CPT first, CPT second) {
-        // Get all the truth values combinations.
-        ArrayList<ArrayList<Integer>> newFactorTruths = newCPT.getCombinations();
-        ArrayList<Double> newCPTValues = new ArrayList<>();
-
-        // Iterate through the new factors' truth combinations and calculate their values.
-        for (int x = 0; x < newFactorTruths.size(); x++) {
-            ArrayList<Integer> truthCombination = newFactorTruths.get(x);
-            ArrayList<Integer> f1Truth = getCPTTruthCombination(truthCombination, newCPT, first);
-            ArrayList<Integer> f2Truth = getCPTTruthCombination(truthCombination, newCPT, second);
-
-            double value = first.getCPTProbability(f1Truth) * second.getCPTProbability(f2Truth);
-            newCPTValues.add(value);
-            truthValuesCalculated++; // increment counter for truth values calculated.
+    private Factor[] getFactors(ArrayList<CPT> cpts) {
+        Factor[] factors = new Factor[cpts.size()];
+        for (int i = 0; i < cpts.size(); i++) {
+            factors[i] = cpts.get(i).getFactor();
         }
+        return factors;
+    }
 
-        return newCPTValues;
+    /**
+     * Get the labels of a factor computed from a list of CPTs, in factor order.
+     * @param cpts the CPTs the factor was computed from.
+     * @param variables the ids of the computed factor's variables.
+     * @return the labels of the factor's variables.
+     */
+    private ArrayList<String> getLabels(ArrayList<CPT> cpts, int[] variables) {
+        ArrayList<String> labels = new ArrayList<>();
+        for (int variable : variables) {
+            for (CPT cpt : cpts) {
+                int index = indexOf(cpt.getVariables(), variable);
+                if (index != -1) {
+                    labels.add(cpt.getNodeLabels().get(index));
+                    break;
+                }
+            }
+        }
+        return labels;
     }
 
     /**
-     * // Collect all the variables without repetition from the two CPT/factors tables.
-     *
-     * @param first
-     * @param second
-     * @return
+     * Find the position of a variable id in an array of ids.
+     * @param variables the variable ids.
+     * @param variable the id to look for.
+     * @return the position of the id, or -1 if it is not found.
      */
-    private ArrayList<String> getCombined(CPT first, CPT second) {
-        ArrayList<String> v1 = variablesBoth(first, second); // variables in both.
-        ArrayList<String> v2 = variablesNotInSecond(first, second); // variables in the first but not second.
-        ArrayList<String> v3 = variablesNotInSecond(second, first); // variables in the second but not first.
-        // Combine three arraylists.
-        ArrayList<String> combined = new ArrayList<String>();
-        combined.addAll(v1);
-        combined.addAll(v2);
-        combined.addAll(v3);
-
-        Collections.reverse(combined);
-        return combined;
-    }
-}
\ No newline at end of file
+    private int indexOf(int[] variables, int variable) {
+        for (int i = 0; i < variables.length; i++) {
+            if (variables[i] == variable) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,191 @@
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Check that factor arrays are only taken from an arena by the query that opened it. First,
+ * an arena is never used by another thread or while it is suspended. Then variable
+ * elimination queries run concurrently on the common fork/join pool, with every elimination
+ * tree split into parallel branches and every product split into parallel chunks, and every
+ * answer is checked against the same query run alone: a worker waiting on its own branches
+ * can run steps of other queries, and a step taking its arrays from that worker's arena would
+ * corrupt the other query.
+ * Run with: java -cp out:test-out FactorArenaConcurrencyTest
+ *
+ * @author: 210017984
+ */
+public class FactorArenaConcurrencyTest {
+
+    // initialise variables.
+    private static final int NUMBER_OF_NODES = 24;
+    private static final int NUMBER_OF_QUERIES = 24;
+    private static final int ROUNDS = 200;
+    private static final double TOLERANCE = 1e-9;
+
+    public static void main(String[] args) throws Exception {
+        // several workers even on a single core, set before the common pool is first used.
+        System.setProperty("java.util.concurrent.ForkJoinPool.common.parallelism", "4");
+
+        checkOwnership();
+
+        BayesianNetwork bn = createNetwork(new Random(7));
+        Random random = new Random(11);
+        ArrayList<VariableElimination> queries = new ArrayList<>();
+        ArrayList<String> values = new ArrayList<>();
+        boolean[] withEvidence = new boolean[NUMBER_OF_QUERIES];
+        double[] expected = new double[NUMBER_OF_QUERIES];
+        for (int i = 0; i < NUMBER_OF_QUERIES; i++) {
+            Node queried = bn.getNodes().get(random.nextInt(bn.getNodes().size()));
+            ArrayList<String[]> evidences = new ArrayList<>();
+            ArrayList<String> order = new ArrayList<>();
+            // eliminating the deepest nodes first gives every subtree its own branch.
+            for (int n = bn.getNodes().size() - 1; n >= 0; n--) {
+                Node node = bn.getNodes().get(n);
+                if (node == queried) {
+                    continue;
+                }
+                order.add(node.getLabel());
+                if (random.nextInt(4) == 0) {
+                    evidences.add(new String[]{node.getLabel(), node.getOutcomes().get(random.nextInt(node.getCardinality()))});
+                }
+            }
+            String value = queried.getOutcomes().get(random.nextInt(queried.getCardinality()));
+            expected[i] = new VariableElimination(bn, queried.getLabel(), order.toArray(new String[0]), evidences)
+                    .runVE(value, !evidences.isEmpty());
+
+            VariableElimination ve = new VariableElimination(bn, queried.getLabel(), order.toArray(new String[0]), evidences);
+            ve.setParallelThreshold(0);
+            queries.add(ve);
+            values.add(value);
+            withEvidence[i] = !evidences.isEmpty();
+        }
+
+        FactorOperations.setParallelThreshold(0);
+        // the queries are forked from inside the pool, so a worker waiting for its own branches
+        // or chunks can be handed steps of the other queries.
+        ArrayList<ForkJoinTask<Integer>> workers = new ArrayList<>();
+        for (int i = 0; i < NUMBER_OF_QUERIES; i++) {
+            int query = i;
+            workers.add(ForkJoinTask.adapt(() -> {
+                int failures = 0;
+                for (int round = 0; round < ROUNDS; round++) {
+                    double result = queries.get(query).runVE(values.get(query), withEvidence[query]);
+                    if (!(Math.abs(result - expected[query]) < TOLERANCE)) {
+                        failures++;
+                    }
+                }
+                return failures;
+            }));
+        }
+        int failures = ForkJoinPool.commonPool().invoke(ForkJoinTask.adapt(() -> {
+            int total = 0;
+            for (ForkJoinTask<Integer> worker : ForkJoinTask.invokeAll(workers)) {
+                total += worker.join();
+            }
+            return total;
+        }));
+        FactorOperations.setParallelThreshold(FactorOperations.DEFAULT_PARALLEL_THRESHOLD);
+
+        System.out.println(failures + " wrong answers out of " + NUMBER_OF_QUERIES * ROUNDS + " concurrent queries.");
+        check(failures == 0, "concurrent queries returned wrong answers.");
+    }
+
+    /**
+     * Check that a new factor takes a pooled array only on the thread that opened the arena,
+     * and not while the arena is suspended for work of another query.
+     */
+    private static void checkOwnership() throws InterruptedException {
+        FactorArena arena = FactorArena.current();
+        arena.open();
+        try {
+            arena.reserve(new int[]{4, 4, 4});
+            int reused = arena.getBuffersReused();
+
+            // another thread handed the arena allocates its own arrays.
+            Thread other = new Thread(() -> {
+                FactorArena active = FactorArena.enter(arena);
+                try {
+                    new Factor(new int[]{0, 1}, new int[]{2, 2});
+                } finally {
+                    FactorArena.restore(active);
+                }
+            });
+            other.start();
+            other.join();
+            check(arena.getBuffersReused() == reused, "another thread took an array from the arena.");
+
+            // work run while the arena is suspended allocates its own arrays.
+            FactorArena active = FactorArena.enter(null);
+            try {
+                new Factor(new int[]{0, 1}, new int[]{2, 2});
+            } finally {
+                FactorArena.restore(active);
+            }
+            check(arena.getBuffersReused() == reused, "a suspended arena handed out an array.");
+
+            // the query's own work takes its arrays from the arena.
+            new Factor(new int[]{0, 1}, new int[]{2, 2});
+            check(arena.getBuffersReused() == reused + 1, "the open arena did not hand out an array.");
+        } finally {
+            arena.close();
+        }
+        check(!arena.isOpen(), "the arena is still open.");
+    }
+
+    /**
+     * Fail the test if a condition does not hold.
+     *
+     * @param condition the condition.
+     * @param message   what went wrong.
+     */
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+
+    /**
+     * Create a random network of multi-valued variables where every node has up to two parents
+     * from the level above, so elimination trees have several independent branches with
+     * factors of the same sizes.
+     *
+     * @param random the source of randomness.
+     * @return the network.
+     */
+    private static BayesianNetwork createNetwork(Random random) {
+        BayesianNetwork bn = new BayesianNetwork();
+        for (int i = 0; i < NUMBER_OF_NODES; i++) {
+            String[] outcomes = new String[3 + random.nextInt(3)];
+            for (int o = 0; o < outcomes.length; o++) {
+                outcomes[o] = "s" + o;
+            }
+            Node node = bn.addNode("X" + i, outcomes);
+            if (i > 0) {
+                bn.addEdge(bn.getNodes().get((i - 1) / 2), node);
+            }
+            if (i > 2) {
+                bn.addEdge(bn.getNodes().get((i - 1) / 2 - 1), node);
+            }
+        }
+        for (Node node : bn.getNodes()) {
+            int rows = 1;
+            for (Node parent : node.getParents()) {
+                rows *= parent.getCardinality();
+            }
+            double[] cptValues = new double[rows * node.getCardinality()];
+            for (int row = 0; row < rows; row++) {
+                double total = 0;
+                for (int o = 0; o < node.getCardinality(); o++) {
+                    cptValues[row * node.getCardinality() + o] = 0.05 + random.nextDouble();
+                    total += cptValues[row * node.getCardinality() + o];
+                }
+                for (int o = 0; o < node.getCardinality(); o++) {
+                    cptValues[row * node.getCardinality() + o] /= total;
+                }
+            }
+            node.getCpt().addCPTvalues(cptValues);
+        }
+        return bn;
+    }
+}